@@ -1,229 +1,6853 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 /**
  * Main class for running the Bank System application, handling user commands and interactions.
  */
 public class Main {
+    private static final CountDownLatch finished = new CountDownLatch(1); // Counted down when main() cleaned up
+
     /**
      * The entry point of the application which processes commands to manage bank accounts.
-     * @param args Command line arguments (not used).
+     * @param args Optional path of a command file and options, see usage().
+     * @throws IOException If the commands cannot be read.
+     * @throws InterruptedException If a parallel replay is interrupted.
      */
-    public static void main(String[] args) {
-        Scanner sc = new Scanner(System.in); // Scanner to read from standard input
-        String[] line1 = sc.nextLine().split(" ");
-        int n = Integer.parseInt(line1[0]); // Number of operations to perform
-        for (int i = 0; i < n; i++) { // Process each operation
-            String[] line = sc.nextLine().split(" ");
-            String command = line[0]; // The command to execute
-            if (command.equals("Create")){
-                String type = line[2];
-                String owner = line[3];
-                String initialDeposit = line[4];
-                BankSystem.createAccount(owner, initialDeposit, type);
-            } else if (command.equals("Transfer")) {
-                String from = line[1];
-                String to = line[2];
-                String fund = line[3];
-                BankSystem.Transfer(from, to, fund);
-            } else if (command.equals("Deposit")) {
-                String owner = line[1];
-                String fund = line[2];
-                BankSystem.Deposit(fund, owner);
-            } else if (command.equals("Withdraw")) {
-                String owner = line[1];
-                String fund = line[2];
-                BankSystem.Withdrawal(fund, owner);
-            } else if (command.equals("Activate")) {
-                String owner = line[1];
-                BankSystem.Activate(owner);
-            } else if (command.equals("Deactivate")) {
-                String owner = line[1];
-                BankSystem.Deactivate(owner);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String path = null; // Command file, null for standard input
+        int threads = 1; // Worker threads, 1 runs the commands directly
+        String dataDir = null; // Directory of the durable state, null to keep it in memory only
+        long snapshotEvery = 1_000_000; // Logged changes between snapshots
+        String mappedDir = null; // Directory of the off-heap account store, null for heap accounts
+        String feeTable = null; // File defining account types and fees, null for the built-in ones
+        long metricsEvery = -1; // Seconds between metrics dumps, 0 for a dump at the end only, -1 for no metrics
+        int port = -1; // Port to serve clients on, -1 to run the commands of the file or standard input
+        String bind = null; // Address to serve clients on, null for the loopback address
+        String importFile = null; // Accounts to add before the commands, null for none
+        String exportFile = null; // File to write the accounts to after the commands, null for none
+        String eventsFile = null; // File to write the account events to, null for none
+        int warmup = 0; // Generated commands run before the real ones
+        boolean startupReport = false;
+        try {
+            for (int a = 0; a < args.length; a++){
+                if (args[a].equals("--double-money")){
+                    Money.setDoubleCompat(true);
+                } else if (args[a].equals("--threads")){
+                    threads = Integer.parseInt(args[++a]);
+                } else if (args[a].equals("--data-dir")){
+                    dataDir = args[++a];
+                } else if (args[a].equals("--snapshot-every")){
+                    snapshotEvery = Long.parseLong(args[++a]);
+                } else if (args[a].equals("--mapped-store")){
+                    mappedDir = args[++a];
+                } else if (args[a].equals("--fee-table")){
+                    feeTable = args[++a];
+                } else if (args[a].equals("--metrics")){
+                    metricsEvery = Long.parseLong(args[++a]);
+                } else if (args[a].equals("--listen")){
+                    port = Integer.parseInt(args[++a]);
+                } else if (args[a].equals("--bind")){
+                    bind = args[++a];
+                } else if (args[a].equals("--import")){
+                    importFile = args[++a];
+                } else if (args[a].equals("--export")){
+                    exportFile = args[++a];
+                } else if (args[a].equals("--events")){
+                    eventsFile = args[++a];
+                } else if (args[a].equals("--warmup")){
+                    warmup = Integer.parseInt(args[++a]);
+                } else if (args[a].equals("--startup-report")){
+                    startupReport = true;
+                } else if (args[a].equals("--help")){
+                    System.out.print(usage());
+                    return;
+                } else if (args[a].startsWith("--")){
+                    throw new IllegalArgumentException("Unknown option " + args[a]);
+                } else {
+                    path = args[a];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            System.err.print("Error: " + args[args.length - 1] + " needs a value\n" + usage());
+            System.exit(2);
+        } catch (IllegalArgumentException e) { // Also a number that does not parse
+            System.err.print("Error: " + e.getMessage() + "\n" + usage());
+            System.exit(2);
+        }
+        long started = System.nanoTime();
+        if (feeTable != null){
+            AccountType.load(Path.of(feeTable)); // After --double-money, amounts in the table depend on it
+        }
+        if (warmup > 0){
+            warmUp(warmup); // Before anything is counted, stored or published
+        }
+        long warmed = System.nanoTime();
+        FirstOutput first = startupReport ? new FirstOutput(Output.getSink()) : null;
+        if (first != null){
+            Output.setSink(first);
+        }
+        if (metricsEvery >= 0){
+            Metrics.enable(metricsEvery);
+        }
+        if (mappedDir != null){
+            BankSystem.openMappedStore(Path.of(mappedDir));
+        }
+        if (dataDir != null){
+            BankSystem.openStorage(Path.of(dataDir), snapshotEvery);
+        }
+        Writer eventLog = null; // Changes replayed from the data directory are not events, so subscribe after
+        if (eventsFile != null){
+            eventLog = Files.newBufferedWriter(Path.of(eventsFile), StandardCharsets.UTF_8);
+            BankSystem.subscribe("event-log", eventWriter(eventLog));
+        }
+        try {
+            if (importFile != null){
+                System.err.println(AccountFiles.importFile(Path.of(importFile), Runtime.getRuntime().availableProcessors()));
+            }
+            if (port >= 0){
+                serve(bind != null ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress(), port);
+            } else {
+                replay(path, threads);
+            }
+            if (exportFile != null){
+                if (exportFile.endsWith(".csv")){
+                    AccountFiles.exportCsv(Path.of(exportFile));
+                } else {
+                    AccountFiles.exportBinary(Path.of(exportFile));
+                }
+            }
+        } finally {
+            try {
+                BankSystem.closeEvents();
+                if (eventLog != null){
+                    eventLog.close();
+                }
+                BankSystem.closeStorage(); // Make everything durable before it is reported
+                BankSystem.closeMappedStore();
+            } finally {
+                Output.flush(); // Write out everything buffered during the batch
+                if (Metrics.isEnabled()){
+                    Metrics.stopDump();
+                    System.err.print(Metrics.dump());
+                }
+                if (first != null){
+                    first.report(started, warmed);
+                }
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Returns the command line help, printed for --help and for arguments that cannot be parsed.
+     * @return The text, one line per option.
+     */
+    static String usage() {
+        return "Usage: java -cp out Main [options] [command file]\n"
+                + "Runs the commands of the file, or of standard input without one.\n"
+                + "  --double-money        double arithmetic like the original program instead of exact thousandths\n"
+                + "  --threads N           replay on N worker threads, with the same output\n"
+                + "  --data-dir DIR        keep the state durable in DIR across runs\n"
+                + "  --snapshot-every N    logged changes that trigger a snapshot in the data directory\n"
+                + "  --mapped-store DIR    keep the accounts in memory-mapped files in DIR instead of on the heap\n"
+                + "  --fee-table FILE      load account types and their fee schedules, see AccountType.load()\n"
+                + "  --metrics N           collect counts and latencies, visible through JMX, and dump them to\n"
+                + "                        standard error every N seconds (never for 0) and at the end\n"
+                + "  --listen PORT         serve the commands of TCP clients until stopped, see CommandServer\n"
+                + "  --bind ADDRESS        address to serve on, the loopback address by default, 0.0.0.0 for all\n"
+                + "  --import FILE         add the accounts of a CSV or binary file before the commands run\n"
+                + "  --export FILE         write all accounts afterwards, as CSV if the name ends with .csv\n"
+                + "  --events FILE         write every change of an account to FILE, one line each\n"
+                + "  --warmup N            run N generated commands on throwaway accounts first\n"
+                + "  --startup-report      print startup, warm-up and time to the first output to standard error\n"
+                + "  --help                print this text\n"
+                + "Short runs start faster from the jar with the class data archive of a training run, both made by\n"
+                + "mvn package as app/target/bank.jar and app/target/bank.jsa:\n"
+                + "  java -XX:SharedArchiveFile=app/target/bank.jsa -XX:TieredStopAtLevel=1 -jar app/target/bank.jar FILE\n";
+    }
+
+    /**
+     * Runs generated commands through the same dispatch as real input, so the command parsing, the account
+     * operations, the fee schedules of every type, money formatting and the error paths are compiled before
+     * the first real command. The accounts and fees it creates are removed afterwards and its output is
+     * discarded. Has to run before any store is opened.
+     * @param commands The number of commands.
+     * @throws IOException If running the commands fails.
+     */
+    static void warmUp(int commands) throws IOException {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder().append(commands).append('\n');
+        ArrayList<String> types = new ArrayList<>();
+        for (int t = 0; AccountType.of(t) != null; t++){
+            types.add(AccountType.of(t).name);
+        }
+        int owners = Math.max(2, Math.min(commands / 16, 256));
+        for (int i = 0; i < commands; i++){
+            int owner = random.nextInt(owners);
+            long amount = (long) Math.pow(10, 1 + random.nextInt(5)) + random.nextInt(1000); // Every fee tier
+            String fund = amount + "." + random.nextInt(1000);
+            switch (i < owners ? 0 : random.nextInt(10)) {
+                case 0 -> text.append("Create Account ").append(types.get(i % types.size())).append(" Warmup")
+                        .append(i % owners).append(' ').append(fund);
+                case 1, 2 -> text.append("Deposit Warmup").append(owner).append(' ').append(fund);
+                case 3 -> text.append("Withdraw Warmup").append(owner).append(' ').append(fund);
+                case 4, 5 -> text.append("Transfer Warmup").append(owner).append(" Warmup")
+                        .append(random.nextInt(owners)).append(' ').append(fund);
+                case 6 -> text.append(random.nextBoolean() ? "Activate Warmup" : "Deactivate Warmup").append(owner);
+                case 7 -> text.append("View Warmup").append(owner).append(" -5 5");
+                case 8 -> text.append("View Warmup").append(owner);
+                default -> text.append("Deposit Ghost ").append(fund); // Unknown owner
+            }
+            text.append('\n');
+        }
+        OutputSink out = Output.getSink();
+        Output.setSink(new OutputSink() {
+            @Override
+            public void writeLine(CharSequence line) {}
+
+            @Override
+            public void writePart(CharSequence part) {}
+
+            @Override
+            public void flush() {}
+        });
+        try (CommandReader in = new CommandReader(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.US_ASCII)))) {
+            in.expectLine();
+            run(in, in.intValue(0));
+        } finally {
+            Output.setSink(out);
+            BankSystem.reset();
+            MoneyFormat.forget(); // Keeps the cache for the amounts of the real commands
+        }
+    }
+
+    /**
+     * Sink noting when the first output is written, for --startup-report.
+     */
+    private static final class FirstOutput implements OutputSink {
+        private final OutputSink target;
+        private volatile long at; // System.nanoTime() of the first output, 0 before
+
+        FirstOutput(OutputSink target) {
+            this.target = target;
+        }
+
+        @Override
+        public void writeLine(CharSequence line) {
+            if (at == 0){
+                at = System.nanoTime();
+            }
+            target.writeLine(line);
+        }
+
+        @Override
+        public void writePart(CharSequence part) {
+            if (at == 0){
+                at = System.nanoTime();
+            }
+            target.writePart(part);
+        }
+
+        @Override
+        public void flush() {
+            target.flush();
+        }
+
+        /**
+         * Prints the startup times to standard error, counted from the start of the JVM.
+         * @param started System.nanoTime() when main() began.
+         * @param warmed System.nanoTime() when the warm-up was done.
+         */
+        void report(long started, long warmed) {
+            long now = System.nanoTime();
+            double uptime = ManagementFactory.getRuntimeMXBean().getUptime(); // Milliseconds since the JVM started
+            System.err.printf("Startup: main after %.1f ms, warm-up done after %.1f ms, first output after %s, finished after %.1f ms%n",
+                    uptime - (now - started) / 1e6, uptime - (now - warmed) / 1e6,
+                    at == 0 ? "none" : String.format("%.1f ms", uptime - (now - at) / 1e6), uptime);
+        }
+    }
+
+    /**
+     * Creates a subscriber writing each event as a line, see AccountEvent.appendTo(). Lines are flushed
+     * at the end of every batch.
+     * @param out The destination.
+     * @return The handler.
+     */
+    private static EventHandler eventWriter(Writer out) {
+        StringBuilder line = new StringBuilder();
+        return (event, endOfBatch) -> {
+            line.setLength(0);
+            out.append(event.appendTo(line).append('\n'));
+            if (endOfBatch){
+                out.flush();
+            }
+        };
+    }
+
+    private static void replay(String path, int threads) throws IOException, InterruptedException {
+        try (CommandReader in = path != null ? CommandReader.open(path) : new CommandReader(System.in)) {
+            in.expectLine();
+            int n = in.intValue(0); // Number of operations to perform
+            if (threads > 1){
+                new ParallelReplay(threads).run(in, n);
             } else {
-                String owner = line[1];
-                BankSystem.View(owner);
+                run(in, n);
+            }
+        }
+    }
+
+    private static void serve(InetAddress address, int port) throws IOException {
+        CommandServer server = new CommandServer(address, port); // Closed by the shutdown hook, not here
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            try {
+                finished.await(); // Let main() make the state durable before the JVM goes down
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "server-shutdown"));
+        System.err.println("Listening on " + address.getHostAddress() + " port " + server.getPort());
+        try {
+            server.serve();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Runs commands one after the other in the calling thread.
+     * @param in The reader to take the commands from.
+     * @param n The number of commands to run.
+     * @throws IOException If reading fails.
+     */
+    static void run(CommandReader in, int n) throws IOException {
+        for (int i = 0; i < n; i++) { // Process each operation
+            in.expectLine();
+            execute(in);
+        }
+    }
+
+    /**
+     * Runs the command on the current line of a reader.
+     * @param in The reader positioned on a command line.
+     */
+    static void execute(CommandReader in) {
+        int id; // Account of the owner, resolved from the bytes of the name; unknown owners keep the name
+        switch (in.command()) { // The command to execute
+            case CommandReader.CREATE -> BankSystem.createAccount(in.text(3), in.amount(4), in.text(2));
+            case CommandReader.TRANSFER -> {
+                int getter;
+                if ((id = in.accountId(1)) >= 0 && (getter = in.accountId(2)) >= 0){
+                    BankSystem.Transfer(id, getter, in.amount(3));
+                } else {
+                    BankSystem.Transfer(in.text(1), in.text(2), in.amount(3));
+                }
+            }
+            case CommandReader.DEPOSIT -> {
+                long fund = in.amount(2);
+                if ((id = in.accountId(1)) >= 0){
+                    BankSystem.Deposit(fund, id);
+                } else {
+                    BankSystem.Deposit(fund, in.text(1));
+                }
+            }
+            case CommandReader.WITHDRAW -> {
+                long fund = in.amount(2);
+                if ((id = in.accountId(1)) >= 0){
+                    BankSystem.Withdrawal(fund, id);
+                } else {
+                    BankSystem.Withdrawal(fund, in.text(1));
+                }
+            }
+            case CommandReader.ACTIVATE -> {
+                if ((id = in.accountId(1)) >= 0){
+                    BankSystem.Activate(id);
+                } else {
+                    BankSystem.Activate(in.text(1));
+                }
+            }
+            case CommandReader.DEACTIVATE -> {
+                if ((id = in.accountId(1)) >= 0){
+                    BankSystem.Deactivate(id);
+                } else {
+                    BankSystem.Deactivate(in.text(1));
+                }
+            }
+            default -> {
+                if (in.tokens() == 2 && in.isKeyword(CommandReader.VIEW) && (id = in.accountId(1)) >= 0){
+                    BankSystem.View(id);
+                } else {
+                    Command.read(in).execute(); // A paged View, or an unknown keyword
+                }
             }
         }
     }
 }
 
 /**
- * Singleton class that manages bank accounts and transactions. Used also for facade pattern.
+ * Streaming reader for the command format "Keyword arg1 arg2 ...", one command per line, words separated by
+ * single spaces. Lines are split in place inside a large byte buffer: the keyword is matched without allocating
+ * and amounts are parsed straight from the bytes, only owner names and types become strings.
+ * Reads either a stream or a memory-mapped file, the latter in large windows so files may exceed 2 GB.
  */
-class BankSystem {
-    private static BankSystem unique = new BankSystem(); // The single instance
-    private static ArrayList<Account> accounts = new ArrayList<>(); // List of all accounts
-    private BankSystem() {} // Private constructor to prevent instantiation
+class CommandReader implements Closeable {
+    public static final int CREATE = 0;
+    public static final int TRANSFER = 1;
+    public static final int DEPOSIT = 2;
+    public static final int WITHDRAW = 3;
+    public static final int ACTIVATE = 4;
+    public static final int DEACTIVATE = 5;
+    public static final int VIEW = 6; // Also used for every unknown keyword
+    private static final byte[][] KEYWORDS = {
+            ascii("Create"), ascii("Transfer"), ascii("Deposit"), ascii("Withdraw"),
+            ascii("Activate"), ascii("Deactivate"), ascii("View")
+    };
+    private static final double[] POW10 = { // Powers of ten that are exact doubles
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT = 1L << 53; // Largest mantissa that converts to double exactly
+    private static final int MAX_TOKENS = 8;
+    private static final int STREAM_BUFFER = 1 << 16;
+    private static final long MAP_WINDOW = 1L << 28; // Bytes of the file mapped at once
+
+    private final InputStream stream; // Source in stream mode, null for mapped files
+    private final FileChannel file; // Source in mapped mode, null for streams
+    private final long end; // End of the part of the file that is read in mapped mode
+    private final byte separator; // Byte between the tokens of a line
+    private final int maxTokens; // Tokens split off a line, the rest of the line is ignored
+    private final boolean csv; // Fields may be quoted, the text is UTF-8
+    private final Charset charset; // The platform charset for commands, the same decoding as a Scanner on System.in
+    private ByteBuffer buf;
+    private long windowOffset; // File position of the first byte of buf in mapped mode
+    private int pos; // Start of the unread data in buf
+    private int limit; // End of the valid data in buf
+    private boolean eof;
+    private int[] tokenStart = new int[MAX_TOKENS];
+    private int[] tokenEnd = new int[MAX_TOKENS];
+    private int tokens; // Number of tokens in the current line
+    private byte[] scratch = new byte[64]; // Copy buffer for tokens of a mapped file
+
     /**
-     * Returns the singleton instance of the BankSystem.
-     * @return The singleton instance of the BankSystem.
+     * Creates a reader over a stream, e.g. standard input.
+     * @param stream The stream with the commands.
      */
-    public static BankSystem getInstance() {
-        return unique;
+    public CommandReader(InputStream stream) {
+        this.stream = stream;
+        this.file = null;
+        this.end = 0;
+        this.separator = ' ';
+        this.maxTokens = MAX_TOKENS;
+        this.csv = false;
+        this.charset = Charset.defaultCharset();
+        this.buf = ByteBuffer.wrap(new byte[STREAM_BUFFER]);
+    }
+
+    private CommandReader(FileChannel file, long start, long end, byte separator, int maxTokens) {
+        this.stream = null;
+        this.file = file;
+        this.end = end;
+        this.separator = separator;
+        this.maxTokens = maxTokens;
+        this.csv = separator == ',';
+        this.charset = csv ? StandardCharsets.UTF_8 : Charset.defaultCharset();
+        this.windowOffset = start;
+        this.buf = ByteBuffer.allocate(0);
     }
 
     /**
-     * Creates a new bank account. Uses factory method pattern.
-     * @param owner The owner of the account.
-     * @param initial_dep The initial deposit amount as a string.
-     * @param type The type of the account (e.g., Savings, Checking).
+     * Opens a reader that maps a command file into memory.
+     * @param path The path of the file.
+     * @return The reader.
+     * @throws IOException If the file cannot be opened.
      */
-    public static void createAccount(String owner, String initial_dep, String type){
-        double initial_deposit = Double.parseDouble(initial_dep);
-        // Create different types of accounts based on the input type
-        if (Objects.equals(type, "Savings")){
-            SavingsAccount account = new SavingsAccount(owner, initial_deposit);
-            accounts.add(account);
-        } else if (Objects.equals(type, "Checking")){
-            CheckingAccount account = new CheckingAccount(owner, initial_deposit);
-            accounts.add(account);
-        } else if (Objects.equals(type, "Business")){
-            BusinessAccount account = new BusinessAccount(owner, initial_deposit);
-            accounts.add(account);
+    public static CommandReader open(String path) throws IOException {
+        return new CommandReader(FileChannel.open(Path.of(path), StandardOpenOption.READ), 0, Long.MAX_VALUE, (byte) ' ', MAX_TOKENS);
+    }
+
+    /**
+     * Creates a reader for the comma separated lines of a part of a file, e.g. one chunk of a CSV file read in
+     * parallel with the others. Lines may have any number of fields. A field in double quotes may contain commas
+     * and doubled quotes, but no line break; text() returns it unquoted. The file is read as UTF-8. Closing the
+     * reader leaves the channel open.
+     * @param file The file, shared by the readers of its parts.
+     * @param start The position of the first line of the part.
+     * @param end The position after the last line of the part.
+     * @return The reader.
+     */
+    public static CommandReader csv(FileChannel file, long start, long end) {
+        return new CommandReader(file, start, end, (byte) ',', Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves to the next line and splits it into tokens.
+     * @return False if the input is exhausted.
+     * @throws IOException If reading fails.
+     */
+    public boolean nextLine() throws IOException {
+        int end;
+        while ((end = indexOfNewline()) < 0){
+            if (eof){
+                if (pos == limit){
+                    return false;
+                }
+                end = limit; // Last line without a line break
+                break;
+            }
+            refill();
+        }
+        int stop = end;
+        if (stop > pos && buf.get(stop - 1) == '\r'){
+            stop--;
         }
-        // Feedback to user about account creation
-        System.out.println("A new " + type + " account created for " + owner + " with an initial balance of $" + format(initial_deposit) + ".");
+        split(stop);
+        pos = end < limit ? end + 1 : end;
+        return true;
     }
 
     /**
-     * Transfers money from one account to another.
-     * @param sender The account from which funds are being sent.
-     * @param getter The account to which funds are being sent.
-     * @param fund The amount of money to transfer as a string.
+     * Moves to the next line, failing like Scanner.nextLine() when there is none.
+     * @throws IOException If reading fails.
      */
-    public static void Transfer(String sender, String getter, String fund){
-        double funds = Double.parseDouble(fund);
-        Account send = getAccount(sender); // Sender account
-        Account get = getAccount(getter); // Receiver account
-        if (send == null){
-            System.out.println("Error: Account " + sender + " does not exist.");
-        } else {
-            if (get == null){
-                System.out.println("Error: Account " + getter + " does not exist.");
-            } else {
-                send.makeTransfer(funds, get); // Perform the transfer
+    public void expectLine() throws IOException {
+        if (!nextLine()){
+            throw new NoSuchElementException("No line found");
+        }
+    }
+
+    /**
+     * Identifies the keyword of the current line.
+     * @return One of the command constants, VIEW for unknown keywords.
+     */
+    public int command() {
+        for (int c = CREATE; c < VIEW; c++){
+            if (tokenEquals(0, KEYWORDS[c])){
+                return c;
             }
         }
+        return VIEW;
     }
 
     /**
-     * Deposits money into an account.
-     * @param funds The amount of money to deposit as a string.
-     * @param owner The owner of the account where the deposit is made.
+     * Tells whether the keyword of the current line is exactly the one of a command, while command() also
+     * maps unknown keywords to VIEW.
+     * @param c One of the command constants.
+     * @return True if the line starts with the keyword of the command.
      */
-    public static void Deposit(String funds, String owner){
-        double fund = Double.parseDouble(funds);
-        Account own = getAccount(owner);
-        if (own == null){
-            System.out.println("Error: Account " + owner + " does not exist.");
+    public boolean isKeyword(int c) {
+        return tokenEquals(0, KEYWORDS[c]);
+    }
+
+    /**
+     * Tells whether the current line is empty.
+     * @return True for an empty line.
+     */
+    public boolean isBlank() {
+        return tokens == 1 && tokenStart[0] == tokenEnd[0];
+    }
+
+    /**
+     * Returns the number of tokens of the current line, the keyword included.
+     * @return The number of tokens.
+     */
+    public int tokens() {
+        return tokens;
+    }
+
+    /**
+     * Returns a token of the current line as a string.
+     * @param i The index of the token, 0 being the keyword.
+     * @return The token text.
+     */
+    public String text(int i) {
+        check(i);
+        int len = tokenEnd[i] - tokenStart[i];
+        String text;
+        if (buf.hasArray()){
+            text = new String(buf.array(), tokenStart[i], len, charset);
         } else {
-            own.makeDeposit(fund); // Perform the deposit
+            if (scratch.length < len){
+                scratch = new byte[len];
+            }
+            buf.get(tokenStart[i], scratch, 0, len);
+            text = new String(scratch, 0, len, charset);
         }
+        return csv ? unquote(text) : text;
     }
 
     /**
-     * Withdraws money from an account.
-     * @param funds The amount of money to withdraw as a string.
-     * @param owner The owner of the account from which the withdrawal is made.
+     * Removes the quotes around a CSV field and undoes the doubling of the quotes inside.
+     * @param field The field as written.
+     * @return The text of the field.
      */
-    public static void Withdrawal(String funds, String owner){
-        double fund = Double.parseDouble(funds);
-        Account own = getAccount(owner);
-        if (own == null){
-            System.out.println("Error: Account " + owner + " does not exist.");
-        } else {
-            own.makeWithdraw(fund); // Perform the withdrawal
+    private static String unquote(String field) {
+        if (field.length() < 2 || field.charAt(0) != '"' || field.charAt(field.length() - 1) != '"'){
+            return field;
         }
+        return field.substring(1, field.length() - 1).replace("\"\"", "\"");
     }
 
     /**
-     * Activates an account.
-     * @param owner The owner of the account to activate.
+     * Resolves a token of the current line to the id of the account of that owner. Plain ASCII names are
+     * looked up straight from the bytes, without creating a string.
+     * @param i The index of the token.
+     * @return The account id, -1 if the owner has no account.
      */
-    public static void Activate(String owner){
-        Account own = getAccount(owner);
-        if (own == null){
-            System.out.println("Error: Account " + owner + " does not exist.");
-        } else {
-            if (own.getState()){
-                System.out.println("Error: Account " + owner + " is already activated.");
+    public int accountId(int i) {
+        check(i);
+        int start = tokenStart[i];
+        int end = tokenEnd[i];
+        byte[] data;
+        if (buf.hasArray()){
+            data = buf.array();
+        } else { // Copying the few bytes of a name beats reading a mapped buffer byte by byte
+            int len = end - start;
+            if (scratch.length < len){
+                scratch = new byte[len];
+            }
+            buf.get(start, scratch, 0, len);
+            data = scratch;
+            start = 0;
+            end = len;
+        }
+        int id = BankSystem.findAccount(data, start, end);
+        if (id == AccountRegistry.NOT_ASCII){
+            Account account = BankSystem.getAccount(text(i));
+            return account == null ? -1 : account.getId();
+        }
+        return id;
+    }
+
+    /**
+     * Parses a token of the current line as an integer.
+     * @param i The index of the token.
+     * @return The value.
+     */
+    public int intValue(int i) {
+        return Integer.parseInt(text(i));
+    }
+
+    /**
+     * Tells whether a token of the current line is an integer of one to nine digits, which intValue() reads
+     * without overflow. Checked on the bytes, nothing is decoded.
+     * @param i The index of the token.
+     * @param signed True to allow a leading minus sign.
+     * @return True for such an integer.
+     */
+    public boolean isInt(int i, boolean signed) {
+        check(i);
+        int start = tokenStart[i];
+        int end = tokenEnd[i];
+        if (signed && start < end && buf.get(start) == '-'){
+            start++;
+        }
+        if (end - start < 1 || end - start > 9){
+            return false;
+        }
+        for (int p = start; p < end; p++){
+            byte b = buf.get(p);
+            if (b < '0' || b > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a byte of a token of the current line, e.g. a one letter code in front of a value.
+     * @param i The index of the token.
+     * @param k The index of the byte in the token.
+     * @return The byte.
+     */
+    public byte byteAt(int i, int k) {
+        check(i);
+        Objects.checkIndex(k, tokenEnd[i] - tokenStart[i]);
+        return buf.get(tokenStart[i] + k);
+    }
+
+    /**
+     * Parses a token of the current line as an amount of money. Plain decimals are converted directly from the
+     * bytes, anything unusual goes through Money.parse.
+     * @param i The index of the token.
+     * @return The amount.
+     */
+    public long amount(int i) {
+        return amount(i, 0);
+    }
+
+    /**
+     * Parses the rest of a token of the current line as an amount of money, after some leading bytes.
+     * @param i The index of the token.
+     * @param skip The number of bytes in front of the amount.
+     * @return The amount.
+     */
+    public long amount(int i, int skip) {
+        if (Money.isDoubleCompat()){
+            return Money.fromDouble(decimal(i, skip));
+        }
+        check(i);
+        long mantissa = 0;
+        int scale = -1; // Digits after the point, -1 while no point was seen
+        int start = tokenStart[i] + skip;
+        int end = tokenEnd[i];
+        for (int p = start; p < end; p++){
+            byte b = buf.get(p);
+            if (b >= '0' && b <= '9'){
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa >= MAX_EXACT){
+                    return Money.parse(text(i).substring(skip));
+                }
+                if (scale >= 0){
+                    scale++;
+                }
+            } else if (b == '.' && scale < 0){
+                scale = 0;
             } else {
-                own.setState(true); // Change the state to active
+                return Money.parse(text(i).substring(skip));
             }
         }
+        if (start >= end || (scale >= 0 && end - start == 1) || scale > 18){
+            return Money.parse(text(i).substring(skip)); // Empty token, a lone point or too many decimals
+        }
+        if (scale <= 3){
+            return mantissa * (long) POW10[3 - Math.max(scale, 0)];
+        }
+        long divisor = (long) POW10[scale - 3];
+        return (mantissa + divisor / 2) / divisor; // Half up to a thousandth
     }
 
     /**
-     * Deactivates an account.
-     * @param owner The owner of the account to deactivate.
+     * Parses a token of the current line as a double. Plain decimals with up to 15 significant digits are
+     * converted directly from the bytes, which gives exactly the value of Double.parseDouble; anything else
+     * is handed to Double.parseDouble.
+     * @param i The index of the token.
+     * @return The value.
      */
-    public static void Deactivate(String owner){
-        Account own = getAccount(owner);
-        if (own == null){
-            System.out.println("Error: Account " + owner + " does not exist.");
-        } else {
-            if (!own.getState()){
-                System.out.println("Error: Account " + owner + " is already deactivated.");
+    public double decimal(int i) {
+        return decimal(i, 0);
+    }
+
+    /**
+     * Parses the rest of a token of the current line as a double, after some leading bytes.
+     * @param i The index of the token.
+     * @param skip The number of bytes in front of the value.
+     * @return The value.
+     */
+    public double decimal(int i, int skip) {
+        check(i);
+        long mantissa = 0;
+        int scale = -1; // Digits after the point, -1 while no point was seen
+        int start = tokenStart[i] + skip;
+        int end = tokenEnd[i];
+        for (int p = start; p < end; p++){
+            byte b = buf.get(p);
+            if (b >= '0' && b <= '9'){
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa >= MAX_EXACT){
+                    return Double.parseDouble(text(i).substring(skip));
+                }
+                if (scale >= 0){
+                    scale++;
+                }
+            } else if (b == '.' && scale < 0){
+                scale = 0;
+            } else {
+                return Double.parseDouble(text(i).substring(skip));
+            }
+        }
+        if (start >= end || (scale >= 0 && end - start == 1) || scale >= POW10.length){
+            return Double.parseDouble(text(i).substring(skip)); // Empty token, a lone point or too many decimals
+        }
+        return scale > 0 ? mantissa / POW10[scale] : mantissa;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null && end == Long.MAX_VALUE){ // Readers of a part leave the shared channel open
+            file.close();
+        }
+    }
+
+    private int indexOfNewline() {
+        for (int p = pos; p < limit; p++){
+            if (buf.get(p) == '\n'){
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    private void split(int stop) {
+        tokens = 0;
+        int start = pos;
+        boolean quoted = false; // Inside a quoted CSV field
+        for (int p = pos; p <= stop && tokens < maxTokens; p++){
+            if (p < stop && csv && buf.get(p) == '"'){
+                quoted = !quoted; // A doubled quote inside a field toggles twice
+            } else if (p == stop || (buf.get(p) == separator && !quoted)){
+                if (tokens == tokenStart.length){
+                    tokenStart = Arrays.copyOf(tokenStart, tokens * 2);
+                    tokenEnd = Arrays.copyOf(tokenEnd, tokens * 2);
+                }
+                tokenStart[tokens] = start;
+                tokenEnd[tokens] = p;
+                tokens++;
+                start = p + 1;
+            }
+        }
+        while (tokens > 1 && tokenStart[tokens - 1] == tokenEnd[tokens - 1]){
+            tokens--; // Trailing empty tokens are dropped, like String.split does
+        }
+    }
+
+    private boolean tokenEquals(int i, byte[] word) {
+        if (i >= tokens || tokenEnd[i] - tokenStart[i] != word.length){
+            return false;
+        }
+        for (int k = 0; k < word.length; k++){
+            if (buf.get(tokenStart[i] + k) != word[k]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void check(int i) {
+        if (i >= tokens){
+            throw new ArrayIndexOutOfBoundsException("Index " + i + " out of bounds for length " + tokens);
+        }
+    }
+
+    private void refill() throws IOException {
+        if (stream != null){
+            byte[] data = buf.array();
+            if (pos > 0){ // Move the incomplete line to the front
+                System.arraycopy(data, pos, data, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            if (limit == data.length){ // The line does not fit, grow the buffer
+                data = Arrays.copyOf(data, data.length * 2);
+                buf = ByteBuffer.wrap(data);
+            }
+            if (stream.available() == 0){
+                BankSystem.commitLog(); // The answers are about to be shown, their changes have to be durable
+                Output.flush(); // About to block, so show the answers to the commands read so far
+            }
+            int n = stream.read(data, limit, data.length - limit);
+            if (n < 0){
+                eof = true;
             } else {
-                own.setState(false); // Change the state to inactive
+                limit += n;
+            }
+        } else {
+            long size = Math.min(file.size(), end);
+            if (windowOffset + limit >= size){
+                eof = true;
+                return;
+            }
+            windowOffset += pos;
+            long length = Math.min(size - windowOffset, Math.max(MAP_WINDOW, 2L * (limit - pos)));
+            buf = file.map(FileChannel.MapMode.READ_ONLY, windowOffset, Math.min(length, Integer.MAX_VALUE));
+            limit = buf.limit();
+            pos = 0;
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
+
+/**
+ * A command line parsed into its parts, for when commands are kept around instead of being run right away.
+ */
+class Command {
+    final int code; // One of the CommandReader constants
+    final String owner; // The account the command is about, the sender of a transfer
+    final String other; // The receiver of a transfer, the type of a new account
+    final long amount;
+    final int offset; // First history entry shown by a paged View, negative to count from the end
+    final int limit; // Most history entries shown by a paged View, -1 for a View of the whole history
+
+    /**
+     * Creates a command.
+     * @param code The kind of command.
+     * @param owner The owner of the account the command is about.
+     * @param other The receiver of a transfer or the type of a new account, null otherwise.
+     * @param amount The amount of money, 0 if the command has none.
+     */
+    public Command(int code, String owner, String other, long amount) {
+        this.code = code;
+        this.owner = owner;
+        this.other = other;
+        this.amount = amount;
+        this.offset = 0;
+        this.limit = -1;
+    }
+
+    /**
+     * Creates a View of a page of the history.
+     * @param owner The owner of the account.
+     * @param offset The first entry shown, negative to count from the end.
+     * @param limit The largest number of entries shown.
+     */
+    public Command(String owner, int offset, int limit) {
+        this.code = CommandReader.VIEW;
+        this.owner = owner;
+        this.other = null;
+        this.amount = 0;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses the current line of a reader.
+     * @param in The reader positioned on a command line.
+     * @return The command.
+     */
+    public static Command read(CommandReader in) {
+        int code = in.command();
+        return switch (code) {
+            case CommandReader.CREATE -> new Command(code, in.text(3), in.text(2), in.amount(4));
+            case CommandReader.TRANSFER -> new Command(code, in.text(1), in.text(2), in.amount(3));
+            case CommandReader.DEPOSIT, CommandReader.WITHDRAW -> new Command(code, in.text(1), null, in.amount(2));
+            default -> paged(in) ? new Command(in.text(1), in.intValue(2), in.tokens() > 3 ? in.intValue(3) : Integer.MAX_VALUE)
+                    : new Command(code, in.text(1), null, 0);
+        };
+    }
+
+    /**
+     * Tells whether the current line is a paged View, "View owner offset [limit]". Other words after the owner
+     * are ignored like before.
+     * @param in The reader positioned on the line.
+     * @return True for a paged View.
+     */
+    private static boolean paged(CommandReader in) {
+        if (in.tokens() < 3 || !in.isKeyword(CommandReader.VIEW) || !in.isInt(2, true)){
+            return false;
+        }
+        return in.tokens() == 3 || in.isInt(3, false);
+    }
+
+    /**
+     * Runs the command against the bank system.
+     */
+    public void execute() {
+        switch (code) {
+            case CommandReader.CREATE -> BankSystem.createAccount(owner, amount, other);
+            case CommandReader.TRANSFER -> BankSystem.Transfer(owner, other, amount);
+            case CommandReader.DEPOSIT -> BankSystem.Deposit(amount, owner);
+            case CommandReader.WITHDRAW -> BankSystem.Withdrawal(amount, owner);
+            case CommandReader.ACTIVATE -> BankSystem.Activate(owner);
+            case CommandReader.DEACTIVATE -> BankSystem.Deactivate(owner);
+            default -> {
+                if (limit < 0){
+                    BankSystem.View(owner);
+                } else {
+                    BankSystem.View(owner, offset, limit);
+                }
             }
         }
     }
+}
+
+/**
+ * Replays commands on several worker threads with exactly the output of a serial run.
+ * Commands are sharded by owner, so every account belongs to one worker which runs its commands in input order.
+ * A transfer between two shards is queued on both: the receiver's worker stops there until the sender's worker
+ * has run it, so both accounts see it at the same point of their history. Each worker buffers the output of
+ * its commands and the buffers are merged back in input order after every batch.
+ */
+class ParallelReplay {
+    private static final int BATCH = 1 << 16; // Commands read and run per round
+
+    private final int workers;
+    private final List<ArrayList<Step>> queues; // Commands of the current batch per worker
+    private final StringBuilder[] buffers; // Output of the current batch per worker
+    private final ArrayList<Step> batch = new ArrayList<>(BATCH); // The current batch in input order
+    private final ThreadLocal<StringBuilder> capture = new ThreadLocal<>(); // Output buffer of a worker
+    private final TextSlice slice = new TextSlice();
+
+    /**
+     * Creates a replay.
+     * @param workers The number of worker threads.
+     */
+    public ParallelReplay(int workers) {
+        this.workers = workers;
+        this.queues = new ArrayList<>(workers);
+        this.buffers = new StringBuilder[workers];
+        for (int w = 0; w < workers; w++){
+            queues.add(new ArrayList<>());
+            buffers[w] = new StringBuilder(1 << 16);
+        }
+    }
+
+    /**
+     * Reads and runs commands, writing their output to the current output sink.
+     * @param in The reader to take the commands from.
+     * @param n The number of commands to run.
+     * @throws IOException If reading fails.
+     * @throws InterruptedException If the replay is interrupted.
+     */
+    public void run(CommandReader in, int n) throws IOException, InterruptedException {
+        OutputSink out = Output.getSink();
+        Output.setSink(new OutputSink() { // Workers write into their own buffer
+            @Override
+            public void writeLine(CharSequence line) {
+                capture.get().append(line).append('\n');
+            }
+
+            @Override
+            public void writePart(CharSequence part) {
+                capture.get().append(part);
+            }
+
+            @Override
+            public void flush() {}
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            int left = n;
+            while (left > 0){
+                RuntimeException failure = null; // A bad line ends the replay once the lines before it are done
+                try {
+                    while (batch.size() < BATCH && left > 0){
+                        in.expectLine();
+                        add(Command.read(in));
+                        left--;
+                    }
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                runBatch(pool);
+                merge(out);
+                if (failure != null){
+                    throw failure;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            Output.setSink(out);
+        }
+    }
+
+    private void add(Command command) {
+        Step step = new Step(command, shard(command.owner));
+        if (command.code == CommandReader.TRANSFER){
+            int receiver = shard(command.other);
+            if (receiver != step.worker){
+                step.handoff = new Handoff();
+                queues.get(receiver).add(step);
+            }
+        }
+        queues.get(step.worker).add(step);
+        batch.add(step);
+    }
+
+    private int shard(String owner) {
+        int h = owner.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), workers);
+    }
+
+    private void runBatch(ExecutorService pool) throws InterruptedException {
+        ExecutorCompletionService<Void> done = new ExecutorCompletionService<>(pool);
+        ArrayList<Future<Void>> running = new ArrayList<>();
+        for (int w = 0; w < workers; w++){
+            int worker = w;
+            running.add(done.submit(() -> work(worker), null));
+        }
+        try {
+            for (int w = 0; w < workers; w++){
+                done.take().get();
+            }
+        } catch (ExecutionException e) {
+            for (Future<Void> f : running){
+                f.cancel(true); // Others may wait for a transfer the failed worker will never run
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    private void work(int worker) {
+        StringBuilder out = buffers[worker];
+        capture.set(out);
+        try {
+            for (Step step : queues.get(worker)){
+                if (step.worker != worker){ // Receiving side of a transfer, wait until the sender ran it
+                    step.handoff.arrived.countDown();
+                    step.handoff.finished.await();
+                    continue;
+                }
+                if (step.handoff != null){
+                    step.handoff.arrived.await();
+                }
+                try {
+                    step.outStart = out.length();
+                    step.command.execute();
+                    step.outEnd = out.length();
+                } finally {
+                    if (step.handoff != null){
+                        step.handoff.finished.countDown();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            capture.remove();
+        }
+    }
+
+    private void merge(OutputSink out) {
+        for (Step step : batch){
+            StringBuilder text = buffers[step.worker];
+            int start = step.outStart;
+            for (int p = start; p < step.outEnd; p++){
+                if (text.charAt(p) == '\n'){
+                    out.writeLine(slice.of(text, start, p));
+                    start = p + 1;
+                }
+            }
+        }
+        batch.clear();
+        for (int w = 0; w < workers; w++){
+            queues.get(w).clear();
+            buffers[w].setLength(0);
+        }
+    }
+
+    /**
+     * A command of the current batch with the worker that runs it and where its output went.
+     */
+    private static class Step {
+        final Command command;
+        final int worker; // Shard of the owner, the worker that runs the command
+        Handoff handoff; // Set for transfers between two shards
+        int outStart; // Output of the command in the buffer of its worker
+        int outEnd;
+
+        Step(Command command, int worker) {
+            this.command = command;
+            this.worker = worker;
+        }
+    }
+
+    /**
+     * Meeting point of the two workers of a transfer between shards.
+     */
+    private static class Handoff {
+        final CountDownLatch arrived = new CountDownLatch(1); // The receiver's worker has stopped
+        final CountDownLatch finished = new CountDownLatch(1); // The sender's worker has run the transfer
+    }
+}
+
+/**
+ * TCP server speaking the command line protocol: a client sends one command per line, without the leading
+ * count, and gets the same lines back that the command prints on standard output. Requests are pipelined, a
+ * client may send any number of commands without waiting; they run in order and their replies are buffered
+ * until the server has run everything the client sent so far, then written at once.
+ * One selector thread does all the socket work for every connection, so an idle client costs a buffer and
+ * no thread. Complete lines of a connection are handed to a pool of one worker per processor and run there;
+ * a connection is not read again until the replies to its last lines are written, which bounds what the
+ * server holds for a client that sends without reading. Commands of different connections run in parallel
+ * like any other callers of BankSystem. A line that is not a valid command is answered with
+ * "Invalid command: " and the reason, and the connection goes on.
+ */
+class CommandServer implements Closeable {
+    private static final int READ_BUFFER = 1 << 16;
+
+    private final Selector selector;
+    private final ServerSocketChannel socket;
+    private final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "bank-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ByteBuffer input = ByteBuffer.allocateDirect(READ_BUFFER); // Used by the selector thread only
+    private final Set<Connection> open = new HashSet<>(); // Used by the selector thread only
+    private final ConcurrentLinkedQueue<Connection> answered = new ConcurrentLinkedQueue<>(); // Replies ready
+    private final CountDownLatch stopped = new CountDownLatch(1); // Counted down when serve() has cleaned up
+    private volatile boolean closing;
+    private volatile boolean serving;
+
+    /**
+     * Opens the server socket.
+     * @param address The address to listen on, e.g. the loopback address to take local clients only.
+     * @param port The port to listen on, 0 for any free port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public CommandServer(InetAddress address, int port) throws IOException {
+        this.selector = Selector.open();
+        this.socket = ServerSocketChannel.open();
+        socket.bind(new InetSocketAddress(address, port));
+        socket.configureBlocking(false);
+        socket.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return The local port.
+     */
+    public int getPort() {
+        return socket.socket().getLocalPort();
+    }
+
+    /**
+     * Serves connections in the calling thread until the server is closed.
+     * @throws IOException If the selector fails.
+     */
+    public void serve() throws IOException {
+        serving = true;
+        try {
+            while (!closing || !open.isEmpty()){
+                selector.select();
+                if (closing && socket.isOpen()){
+                    stopAccepting();
+                }
+                Connection done;
+                while ((done = answered.poll()) != null){
+                    written(done, false);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    if (key.isAcceptable()){
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()){
+                                read(connection);
+                            } else if (key.isWritable()){
+                                written(connection, true);
+                            }
+                        } catch (IOException e) {
+                            drop(connection); // The client went away, there is nobody left to tell
+                        }
+                    }
+                }
+            }
+        } finally {
+            cleanUp();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = socket.accept();
+        if (channel == null){
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Replies are batched already
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        open.add(connection);
+        if (closing){
+            connection.eof = true; // Too late to send anything
+            next(connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        input.clear();
+        int n = connection.channel.read(input);
+        if (n < 0){
+            connection.eof = true;
+        } else {
+            input.flip();
+            connection.receive(input);
+        }
+        next(connection);
+    }
+
+    /**
+     * Writes what is left of the replies of a connection and goes on with it once they are all written.
+     * @param connection The connection.
+     * @param writable True if the selector found the socket writable.
+     */
+    private void written(Connection connection, boolean writable) {
+        if (!connection.channel.isOpen()){
+            return; // Dropped while its commands ran
+        }
+        try {
+            ByteBuffer reply = connection.reply;
+            if (reply != null && (writable || reply.hasRemaining())){
+                connection.channel.write(reply);
+            }
+            if (reply != null && reply.hasRemaining()){
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.reply = null;
+            connection.busy = false;
+            next(connection);
+        } catch (IOException e) {
+            drop(connection);
+        }
+    }
+
+    /**
+     * Hands the complete lines of an idle connection to a worker, or waits for more input, or closes the
+     * connection at the end of its input.
+     * @param connection The connection.
+     */
+    private void next(Connection connection) {
+        if (connection.busy){
+            connection.key.interestOps(0);
+            return;
+        }
+        byte[] lines = connection.takeLines();
+        if (lines != null){
+            connection.busy = true;
+            connection.key.interestOps(0);
+            workers.execute(() -> run(connection, lines));
+        } else if (connection.eof){
+            drop(connection);
+        } else {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Runs commands of a connection in a worker thread and passes the replies back to the selector thread.
+     * @param connection The connection.
+     * @param lines The commands, complete lines.
+     */
+    private void run(Connection connection, byte[] lines) {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream(Math.max(256, lines.length * 2));
+        WriterSink out = new WriterSink(replies);
+        Output.bind(out);
+        try (CommandReader in = new CommandReader(new ByteArrayInputStream(lines))) {
+            while (in.nextLine()){
+                if (in.isBlank()){
+                    continue;
+                }
+                try {
+                    Main.execute(in);
+                } catch (RuntimeException e) {
+                    out.writeLine("Invalid command: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by an array
+        } finally {
+            Output.bind(null);
+            BankSystem.commitLog(); // The replies are about to be shown, their changes have to be durable
+            out.flush();
+            connection.reply = ByteBuffer.wrap(replies.toByteArray());
+            answered.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    private void drop(Connection connection) {
+        open.remove(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private void stopAccepting() throws IOException {
+        socket.close();
+        for (Connection connection : new ArrayList<>(open)){
+            connection.eof = true; // Commands received so far are run and answered, then the connection ends
+            if (!connection.busy){
+                next(connection);
+            }
+        }
+    }
+
+    private synchronized void cleanUp() {
+        for (Connection connection : new ArrayList<>(open)){
+            drop(connection);
+        }
+        workers.shutdown();
+        try {
+            socket.close();
+            selector.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        stopped.countDown();
+    }
+
+    /**
+     * Stops accepting connections and ends the open ones: their commands received so far are run and
+     * answered, then the connection is closed. Waits for that to finish.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        if (!serving){
+            cleanUp();
+            return;
+        }
+        selector.wakeup();
+        try {
+            stopped.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * State of a client connection. Changed by the selector thread only, except for the replies, which the
+     * worker hands over through the queue of answered connections.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        byte[] pending = new byte[256]; // Input received but not run yet
+        int length;
+        boolean eof; // The client sent everything
+        boolean busy; // Lines are running or their replies are being written
+        ByteBuffer reply;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Adds received bytes to the pending input.
+         * @param data The bytes.
+         */
+        void receive(ByteBuffer data) {
+            if (length + data.remaining() > pending.length){
+                pending = Arrays.copyOf(pending, Math.max(length + data.remaining(), pending.length * 2));
+            }
+            int n = data.remaining();
+            data.get(pending, length, n);
+            length += n;
+        }
+
+        /**
+         * Removes the complete lines from the pending input, and at the end of the input the rest too.
+         * @return The lines, null if there are none.
+         */
+        byte[] takeLines() {
+            int end = length;
+            if (!eof){
+                while (end > 0 && pending[end - 1] != '\n'){
+                    end--;
+                }
+            }
+            if (end == 0){
+                return null;
+            }
+            byte[] lines = Arrays.copyOf(pending, end);
+            System.arraycopy(pending, end, pending, 0, length - end);
+            length -= end;
+            return lines;
+        }
+    }
+}
+
+/**
+ * Reusable view of a part of a StringBuilder, used to pass text around without copying it.
+ */
+class TextSlice implements CharSequence {
+    private StringBuilder text;
+    private int start;
+    private int end;
+
+    /**
+     * Points the view at a range of a buffer.
+     * @param text The buffer.
+     * @param start The first character of the range.
+     * @param end The end of the range, exclusive.
+     * @return This view.
+     */
+    public TextSlice of(StringBuilder text, int start, int end) {
+        this.text = text;
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    /**
+     * Copies the viewed characters into an array.
+     * @param dst The destination array.
+     * @param dstBegin The first index to write to.
+     */
+    public void getChars(char[] dst, int dstBegin) {
+        text.getChars(start, end, dst, dstBegin);
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        return text.subSequence(start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        return text.substring(start, end);
+    }
+}
+
+/**
+ * Singleton class that manages bank accounts and transactions. Used also for facade pattern.
+ * All operations are thread-safe: an operation holds the locks of the accounts it touches while it changes
+ * them and prints its result, so operations on different accounts run in parallel.
+ */
+class BankSystem {
+    private static BankSystem unique = new BankSystem(); // The single instance
+    private static final AccountRegistry accounts = new AccountRegistry(); // Index of all accounts by owner
+    private static final AccountLocks locks = new AccountLocks(Runtime.getRuntime().availableProcessors());
+    private static volatile BankStorage storage; // Durable log of the changes, null when kept in memory only
+    private static volatile MappedAccountStore mapped; // Off-heap account records, null for heap accounts
+    private static final FeeLedger fees = new FeeLedger(); // Fees credited to the system revenue account
+    private static final VersionClock versions = new VersionClock(); // Epochs of the changes, for snapshots
+    private static volatile AccountIndex indexes; // Secondary indexes, null until the first query builds them
+    private static final ConcurrentLinkedQueue<Account> hot = new ConcurrentLinkedQueue<>(); // Accounts with credits
+    private static final int HOT_CONTENTION = 32; // Transfers per window finding a receiver locked before it turns hot
+    private static final int HOT_WINDOW_SHIFT = 30; // Windows of 2^30 ns, about a second, for counting contention
+    private static volatile long lastCooled; // Time of the last pass that turned quiet hot accounts back, see cool()
+    private static final int EVENT_CAPACITY = 1 << 16; // Events the stream holds for slow subscribers
+    private static volatile EventStream events; // Changes for subscribers, null until the first subscription
+    private BankSystem() {} // Private constructor to prevent instantiation
+    /**
+     * Returns the singleton instance of the BankSystem.
+     * @return The singleton instance of the BankSystem.
+     */
+    public static BankSystem getInstance() {
+        return unique;
+    }
+
+    /**
+     * Creates a new bank account. Uses factory method pattern.
+     * @param owner The owner of the account.
+     * @param initial_dep The initial deposit amount as a string.
+     * @param type The type of the account (e.g., Savings, Checking).
+     */
+    public static void createAccount(String owner, String initial_dep, String type){
+        createAccount(owner, Money.parse(initial_dep), type);
+    }
+
+    /**
+     * Creates a new bank account from an already parsed initial deposit.
+     * @param owner The owner of the account.
+     * @param initial_deposit The initial deposit amount.
+     * @param type The type of the account (e.g., Savings, Checking).
+     */
+    public static void createAccount(String owner, long initial_deposit, String type){
+        long start = Metrics.start();
+        AccountType accountType = AccountType.of(type);
+        if (accountType != null){
+            long stamp = versions.beginWrite();
+            locks.lock(owner);
+            try {
+                if (accounts.contains(owner)){ // Owners are unique, the first account keeps the name
+                    Output.line().append("Error: Account ").append(owner).append(" already exists.").println();
+                    Metrics.fail(CommandReader.CREATE, Metrics.DUPLICATE);
+                    Metrics.end(CommandReader.CREATE, start);
+                    return;
+                }
+                MappedAccountStore store = mapped;
+                Account account = store == null ? newAccount(owner, initial_deposit, type)
+                        : newView(owner, accountType.id, store, store.allocate(owner, accountType.id, initial_deposit));
+                account.created = stamp; // Not part of snapshots taken before
+                accounts.add(account);
+                index(account);
+                publish(AccountEvent.CREATED, account, accountType.name, initial_deposit);
+                log(CommandReader.CREATE, owner, type, initial_deposit);
+            } finally {
+                locks.unlock(owner);
+                versions.endWrite(stamp);
+            }
+        } else {
+            Metrics.fail(CommandReader.CREATE, Metrics.UNKNOWN_TYPE);
+        }
+        // Feedback to user about account creation, an unknown type is reported the same way
+        OutputLine line = accountType != null ? Output.line().append(accountType.createdLabel)
+                : Output.line().append("A new ").append(type).append(" account created for ");
+        line.append(owner).append(" with an initial balance of $").money(initial_deposit).append(".").println();
+        checkpoint();
+        Metrics.end(CommandReader.CREATE, start);
+    }
+
+    /**
+     * Transfers money from one account to another.
+     * @param sender The account from which funds are being sent.
+     * @param getter The account to which funds are being sent.
+     * @param fund The amount of money to transfer as a string.
+     */
+    public static void Transfer(String sender, String getter, String fund){
+        Transfer(sender, getter, Money.parse(fund));
+    }
+
+    /**
+     * Transfers an already parsed amount of money from one account to another.
+     * @param sender The account from which funds are being sent.
+     * @param getter The account to which funds are being sent.
+     * @param funds The amount of money to transfer.
+     */
+    public static void Transfer(String sender, String getter, long funds){
+        long start = Metrics.start();
+        Account send = getAccount(sender); // Sender account
+        Account get = getAccount(getter); // Receiver account
+        if (send == null){
+            Output.line().append("Error: Account ").append(sender).append(" does not exist.").println();
+            Metrics.fail(CommandReader.TRANSFER, BatchResult.NO_ACCOUNT);
+        } else {
+            if (get == null){
+                Output.line().append("Error: Account ").append(getter).append(" does not exist.").println();
+                Metrics.fail(CommandReader.TRANSFER, BatchResult.NO_ACCOUNT);
+            } else {
+                transfer(send, get, funds);
+            }
+        }
+        Metrics.end(CommandReader.TRANSFER, start);
+    }
+
+    /**
+     * Transfers money between two accounts given by their ids.
+     * @param sender The id of the account from which funds are being sent.
+     * @param getter The id of the account to which funds are being sent.
+     * @param funds The amount of money to transfer.
+     */
+    public static void Transfer(int sender, int getter, long funds){
+        long start = Metrics.start();
+        transfer(account(sender), account(getter), funds);
+        Metrics.end(CommandReader.TRANSFER, start);
+    }
+
+    private static void transfer(Account send, Account get, long funds){
+        if (!hot.isEmpty() && System.nanoTime() - lastCooled >= 1L << HOT_WINDOW_SHIFT){
+            cool(); // Before anything is locked, it stops all operations
+        }
+        long stamp = versions.beginWrite();
+        // A hot receiver is credited without its lock, unless snapshots or the log need each change in place
+        if (get.credits != null && send != get && versions.oldestOpen() == Long.MAX_VALUE && storage == null){
+            boolean deferred = false;
+            locks.lock(send);
+            try {
+                deferred = get.credits != null; // Cooling locks every stripe, so it cannot drop them from here on
+                if (deferred){
+                    settle(send);
+                    send.keepVersion(stamp, versions.oldestOpen());
+                    if (send.makeTransfer(funds, get, true)){
+                        index(send);
+                        publishCharged(AccountEvent.TRANSFERRED, send, get.getOwner(), funds);
+                    }
+                }
+            } finally {
+                locks.unlock(send);
+                if (deferred){
+                    versions.endWrite(stamp);
+                }
+            }
+            if (deferred){
+                return;
+            }
+        }
+        // Only a hint: the stripe may be held for another account, so it takes many transfers in one window
+        if (get.credits == null && storage == null && !Money.isDoubleCompat() && locks.isLocked(get)
+                && get.contend(System.nanoTime() >>> HOT_WINDOW_SHIFT) >= HOT_CONTENTION){
+            heat(get);
+        }
+        locks.lock(send, get);
+        try {
+            settle(send);
+            settle(get);
+            send.keepVersion(stamp, versions.oldestOpen());
+            get.keepVersion(stamp, versions.oldestOpen());
+            if (send.makeTransfer(funds, get)){ // Perform the transfer
+                index(send);
+                index(get);
+                publishCharged(AccountEvent.TRANSFERRED, send, get.getOwner(), funds);
+                log(CommandReader.TRANSFER, send.getOwner(), get.getOwner(), funds);
+            }
+        } finally {
+            locks.unlock(send, get);
+            versions.endWrite(stamp);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Deposits money into an account.
+     * @param funds The amount of money to deposit as a string.
+     * @param owner The owner of the account where the deposit is made.
+     */
+    public static void Deposit(String funds, String owner){
+        Deposit(Money.parse(funds), owner);
+    }
+
+    /**
+     * Deposits an already parsed amount of money into an account.
+     * @param fund The amount of money to deposit.
+     * @param owner The owner of the account.
+     */
+    public static void Deposit(long fund, String owner){
+        long start = Metrics.start();
+        Account own = getAccount(owner);
+        if (own == null){
+            Output.line().append("Error: Account ").append(owner).append(" does not exist.").println();
+            Metrics.fail(CommandReader.DEPOSIT, BatchResult.NO_ACCOUNT);
+        } else {
+            deposit(own, fund);
+        }
+        Metrics.end(CommandReader.DEPOSIT, start);
+    }
+
+    /**
+     * Deposits money into an account given by its id.
+     * @param fund The amount of money to deposit.
+     * @param id The id of the account.
+     */
+    public static void Deposit(long fund, int id){
+        long start = Metrics.start();
+        deposit(account(id), fund);
+        Metrics.end(CommandReader.DEPOSIT, start);
+    }
+
+    private static void deposit(Account own, long fund){
+        long stamp = versions.beginWrite();
+        locks.lock(own);
+        try {
+            settle(own);
+            own.keepVersion(stamp, versions.oldestOpen());
+            own.makeDeposit(fund); // Perform the deposit
+            index(own);
+            publish(AccountEvent.DEPOSITED, own, null, fund);
+            log(CommandReader.DEPOSIT, own.getOwner(), null, fund);
+        } finally {
+            locks.unlock(own);
+            versions.endWrite(stamp);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Withdraws money from an account.
+     * @param funds The amount of money to withdraw as a string.
+     * @param owner The owner of the account from which the withdrawal is made.
+     */
+    public static void Withdrawal(String funds, String owner){
+        Withdrawal(Money.parse(funds), owner);
+    }
+
+    /**
+     * Withdraws an already parsed amount of money from an account.
+     * @param fund The amount of money to withdraw.
+     * @param owner The owner of the account.
+     */
+    public static void Withdrawal(long fund, String owner){
+        long start = Metrics.start();
+        Account own = getAccount(owner);
+        if (own == null){
+            Output.line().append("Error: Account ").append(owner).append(" does not exist.").println();
+            Metrics.fail(CommandReader.WITHDRAW, BatchResult.NO_ACCOUNT);
+        } else {
+            withdraw(own, fund);
+        }
+        Metrics.end(CommandReader.WITHDRAW, start);
+    }
+
+    /**
+     * Withdraws money from an account given by its id.
+     * @param fund The amount of money to withdraw.
+     * @param id The id of the account.
+     */
+    public static void Withdrawal(long fund, int id){
+        long start = Metrics.start();
+        withdraw(account(id), fund);
+        Metrics.end(CommandReader.WITHDRAW, start);
+    }
+
+    private static void withdraw(Account own, long fund){
+        long stamp = versions.beginWrite();
+        locks.lock(own);
+        try {
+            settle(own); // Credits received so far count for the funds check
+            own.keepVersion(stamp, versions.oldestOpen());
+            if (own.makeWithdraw(fund)){ // Perform the withdrawal
+                index(own);
+                publishCharged(AccountEvent.WITHDREW, own, null, fund);
+                log(CommandReader.WITHDRAW, own.getOwner(), null, fund);
+            }
+        } finally {
+            locks.unlock(own);
+            versions.endWrite(stamp);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Activates an account.
+     * @param owner The owner of the account to activate.
+     */
+    public static void Activate(String owner){
+        long start = Metrics.start();
+        Account own = getAccount(owner);
+        if (own == null){
+            Output.line().append("Error: Account ").append(owner).append(" does not exist.").println();
+            Metrics.fail(CommandReader.ACTIVATE, BatchResult.NO_ACCOUNT);
+        } else {
+            setState(own, true);
+        }
+        Metrics.end(CommandReader.ACTIVATE, start);
+    }
+
+    /**
+     * Activates an account given by its id.
+     * @param id The id of the account to activate.
+     */
+    public static void Activate(int id){
+        long start = Metrics.start();
+        setState(account(id), true);
+        Metrics.end(CommandReader.ACTIVATE, start);
+    }
+
+    /**
+     * Deactivates an account.
+     * @param owner The owner of the account to deactivate.
+     */
+    public static void Deactivate(String owner){
+        long start = Metrics.start();
+        Account own = getAccount(owner);
+        if (own == null){
+            Output.line().append("Error: Account ").append(owner).append(" does not exist.").println();
+            Metrics.fail(CommandReader.DEACTIVATE, BatchResult.NO_ACCOUNT);
+        } else {
+            setState(own, false);
+        }
+        Metrics.end(CommandReader.DEACTIVATE, start);
+    }
+
+    /**
+     * Deactivates an account given by its id.
+     * @param id The id of the account to deactivate.
+     */
+    public static void Deactivate(int id){
+        long start = Metrics.start();
+        setState(account(id), false);
+        Metrics.end(CommandReader.DEACTIVATE, start);
+    }
+
+    private static void setState(Account own, boolean active){
+        int op = active ? CommandReader.ACTIVATE : CommandReader.DEACTIVATE;
+        long stamp = versions.beginWrite();
+        locks.lock(own);
+        try {
+            settle(own);
+            own.keepVersion(stamp, versions.oldestOpen());
+            if (own.getState() == active){
+                Output.line().append("Error: Account ").append(own.getOwner())
+                        .append(active ? " is already activated." : " is already deactivated.").println();
+                Metrics.fail(op, Metrics.DUPLICATE);
+            } else {
+                own.setState(active); // Change the state
+                index(own);
+                publish(AccountEvent.STATE_CHANGED, own, null, 0);
+                log(op, own.getOwner(), null, 0);
+            }
+        } finally {
+            locks.unlock(own);
+            versions.endWrite(stamp);
+        }
+        checkpoint();
+    }
+
+    /**
+     * Displays details of an account.
+     * @param owner The owner of the account whose details are to be displayed.
+     */
+    public static void View(String owner){
+        long start = Metrics.start();
+        Account own = getAccount(owner);
+        if (own == null){
+            Output.line().append("Error: Account ").append(owner).append(" does not exist.").println();
+            Metrics.fail(CommandReader.VIEW, BatchResult.NO_ACCOUNT);
+        } else {
+            own.makeView(readState(own)); // Show account details
+        }
+        Metrics.end(CommandReader.VIEW, start);
+    }
+
+    /**
+     * Displays details of an account given by its id.
+     * @param id The id of the account whose details are to be displayed.
+     */
+    public static void View(int id){
+        long start = Metrics.start();
+        Account own = account(id);
+        own.makeView(readState(own));
+        Metrics.end(CommandReader.VIEW, start);
+    }
+
+    private static AccountState readState(Account own){
+        locks.lock(own);
+        try {
+            settle(own);
+            return own.state(); // Only the state is read locked, the history it covers is published by the journal
+        } finally {
+            locks.unlock(own);
+        }
+    }
+
+    /**
+     * Runs a batch of deposits, withdrawals and transfers as one transaction: either every operation is applied
+     * or none is. All accounts involved are looked up once and locked together, then the operations are checked
+     * in order against the balances the accounts would have at that point. Nothing is printed, the outcome of
+     * each operation is returned instead, and the batch is logged as one group that recovery applies whole.
+     * @param batch The operations.
+     * @return The outcome of each operation.
+     */
+    public static BatchResult execute(Batch batch){
+        long start = Metrics.start();
+        int size = batch.size();
+        BatchResult result = new BatchResult(size);
+        HashMap<String, Integer> index = new HashMap<>(); // Position of each account in involved
+        ArrayList<Account> involved = new ArrayList<>();
+        int[] from = new int[size]; // Account of each operation
+        int[] to = new int[size]; // Receiver of each transfer
+        for (int i = 0; i < size; i++){
+            from[i] = involve(batch.owner(i), index, involved);
+            to[i] = batch.op(i) == CommandReader.TRANSFER ? involve(batch.other(i), index, involved) : 0;
+            if (from[i] < 0 || to[i] < 0){
+                result.fail(i, BatchResult.NO_ACCOUNT);
+            }
+        }
+        Account[] involvedAccounts = involved.toArray(new Account[0]);
+        long stamp = versions.beginWrite();
+        int[] locked = locks.lock(involvedAccounts, involvedAccounts.length);
+        try {
+            long[] balance = new long[involvedAccounts.length]; // What each account would have so far
+            for (int a = 0; a < involvedAccounts.length; a++){
+                settle(involvedAccounts[a]);
+                balance[a] = involvedAccounts[a].getDeposit();
+            }
+            for (int i = 0; i < size; i++){
+                if (result.status(i) != BatchResult.OK){
+                    continue;
+                }
+                int op = batch.op(i);
+                long fund = batch.amount(i);
+                int a = from[i];
+                if (op == CommandReader.DEPOSIT){ // Deposits are accepted on inactive accounts too
+                    balance[a] = Money.add(balance[a], fund);
+                    result.ok(i, 0, balance[a]);
+                } else if (!involvedAccounts[a].getState()){
+                    result.fail(i, BatchResult.INACTIVE);
+                } else if (!Money.covers(balance[a], fund)){
+                    result.fail(i, BatchResult.INSUFFICIENT);
+                } else {
+                    FeeStrategies fees = involvedAccounts[a].getAccountType().fees;
+                    int tier = fees.tier(fund);
+                    balance[a] = Money.subtract(balance[a], fund);
+                    if (op == CommandReader.TRANSFER){
+                        balance[to[i]] = Money.add(balance[to[i]], fees.net(fund, tier));
+                    }
+                    result.ok(i, fees.fee(fund, tier), balance[a]);
+                }
+            }
+            if (!result.committed()){
+                for (int i = 0; i < size; i++){
+                    if (result.status(i) != BatchResult.OK){
+                        Metrics.fail(Metrics.BATCH, result.status(i)); // Counted once, by the first failure
+                        break;
+                    }
+                }
+                Metrics.end(Metrics.BATCH, start);
+                return result;
+            }
+            for (Account account : involvedAccounts){
+                account.keepVersion(stamp, versions.oldestOpen());
+            }
+            for (int i = 0; i < size; i++){
+                Account own = involvedAccounts[from[i]];
+                long fund = batch.amount(i);
+                switch (batch.op(i)) {
+                    case CommandReader.DEPOSIT -> {
+                        own.applyDeposit(fund);
+                        publish(AccountEvent.DEPOSITED, own, null, fund);
+                    }
+                    case CommandReader.WITHDRAW -> {
+                        own.applyWithdraw(fund);
+                        publish(AccountEvent.WITHDREW, own, null, fund);
+                    }
+                    default -> {
+                        FeeStrategies fees = own.getAccountType().fees;
+                        own.applyTransfer(fund, fees.net(fund, fees.tier(fund)), involvedAccounts[to[i]]);
+                        publish(AccountEvent.TRANSFERRED, own, involvedAccounts[to[i]].getOwner(), fund);
+                    }
+                }
+                if (result.fee(i) != 0){
+                    publish(AccountEvent.FEE_CHARGED, own, null, result.fee(i));
+                }
+                fees.credit(own.getAccountType(), result.fee(i)); // Under the locks, so a snapshot sees the fees with the balances
+                Metrics.fee(result.fee(i));
+            }
+            for (Account account : involvedAccounts){
+                index(account);
+            }
+            BankStorage current = storage;
+            if (current != null && size > 0){
+                current.appendGroup(batch);
+            }
+        } finally {
+            locks.unlock(locked);
+            versions.endWrite(stamp);
+        }
+        checkpoint();
+        Metrics.end(Metrics.BATCH, start);
+        return result;
+    }
+
+    /**
+     * Looks up an account of a batch, each owner only once.
+     * @param owner The owner.
+     * @param index Position of the accounts already looked up.
+     * @param involved The accounts already looked up.
+     * @return The position of the account, -1 if it does not exist.
+     */
+    private static int involve(String owner, HashMap<String, Integer> index, ArrayList<Account> involved){
+        Integer known = index.get(owner);
+        if (known != null){
+            return known;
+        }
+        Account account = getAccount(owner);
+        if (account == null){
+            return -1;
+        }
+        index.put(owner, involved.size());
+        involved.add(account);
+        return involved.size() - 1;
+    }
+
+    /**
+     * Displays details of an account with a page of its transaction history.
+     * @param owner The owner of the account whose details are to be displayed.
+     * @param offset The index of the first entry shown, counted from the end when negative.
+     * @param limit The largest number of entries shown.
+     */
+    public static void View(String owner, int offset, int limit){
+        long start = Metrics.start();
+        Account own = getAccount(owner);
+        if (own == null){
+            Output.line().append("Error: Account ").append(owner).append(" does not exist.").println();
+            Metrics.fail(CommandReader.VIEW, BatchResult.NO_ACCOUNT);
+        } else {
+            own.makeView(readState(own), offset, limit); // Show account details
+        }
+        Metrics.end(CommandReader.VIEW, start);
+    }
+
+    /**
+     * Opens a consistent point-in-time view of all accounts, e.g. for a balance report. Reading it takes no
+     * account locks, so operations keep running meanwhile. It has to be closed.
+     * @return The snapshot.
+     */
+    public static BankSnapshot snapshot(){
+        BankSnapshot snapshot = new BankSnapshot(versions, accounts.values());
+        settleHot(); // No credits are deferred while it is open, fold those from before
+        return snapshot;
+    }
+
+    /**
+     * Returns the ledger of the fees, whose total is the balance of the system revenue account.
+     * @return The ledger.
+     */
+    public static FeeLedger getFeeLedger(){
+        return fees;
+    }
+
+    /**
+     * Retrieves an account by the owner's name.
+     * @param owner The owner's name.
+     * @return The account if found, null otherwise.
+     */
+    public static Account getAccount(String owner){
+        if (!Metrics.isEnabled()){
+            return accounts.get(owner);
+        }
+        long start = Metrics.start();
+        Account account = accounts.get(owner);
+        if (account == null){
+            Metrics.fail(Metrics.LOOKUP, BatchResult.NO_ACCOUNT);
+        }
+        Metrics.end(Metrics.LOOKUP, start);
+        return account;
+    }
+
+    /**
+     * Retrieves an account by its id, see Account.getId().
+     * @param id The id of the account.
+     * @return The account if found, null otherwise.
+     */
+    public static Account getAccount(int id){
+        return accounts.get(id);
+    }
+
+    /**
+     * Finds the id of the account of an owner whose name is given as bytes, e.g. a token of a command line.
+     * @param bytes The array holding the name.
+     * @param start The index of the first byte of the name.
+     * @param end The index after the name.
+     * @return The id, -1 if the owner has no account, AccountRegistry.NOT_ASCII if the name has to be decoded.
+     */
+    static int findAccount(byte[] bytes, int start, int end){
+        if (!Metrics.isEnabled()){
+            return accounts.find(bytes, start, end);
+        }
+        long begin = Metrics.start();
+        int id = accounts.find(bytes, start, end);
+        if (id >= 0){ // Owners not found are looked up by name afterwards, which counts them
+            Metrics.end(Metrics.LOOKUP, begin);
+        }
+        return id;
+    }
+
+    private static Account account(int id){
+        Account account = accounts.get(id);
+        if (account == null){
+            throw new IllegalArgumentException("No account with id " + id);
+        }
+        return account;
+    }
+
+    /**
+     * Returns all accounts in the order they were created, e.g. for reports.
+     * @return A read-only view of the accounts.
+     */
+    public static Collection<Account> getAccounts(){
+        return accounts.values();
+    }
+
+    /**
+     * Finds the accounts of a type in one activation state, e.g. all inactive Business accounts.
+     * @param type The type name, null for all types.
+     * @param active True for the active accounts, false for the inactive ones.
+     * @param limit The largest number of accounts returned.
+     * @return The state of each account, in the order they were created within each type.
+     */
+    public static List<AccountState> findAccounts(String type, boolean active, int limit){
+        AccountIndex current = indexes();
+        ArrayList<AccountState> found = new ArrayList<>();
+        if (type != null){
+            AccountType accountType = AccountType.of(type);
+            if (accountType == null){
+                throw new IllegalArgumentException("Unknown account type " + type);
+            }
+            collect(current.ids(accountType.id, active), active, found, limit);
+        } else {
+            for (int t = 0; AccountType.of(t) != null && found.size() < limit; t++){
+                collect(current.ids(t, active), active, found, limit);
+            }
+        }
+        return found;
+    }
+
+    private static void collect(Collection<Integer> ids, boolean active, List<AccountState> found, int limit){
+        for (Iterator<Integer> it = ids.iterator(); it.hasNext() && found.size() < limit; ){
+            Account account = accounts.get(it.next());
+            locks.lock(account);
+            try {
+                if (account.getState() == active){ // Skips an account whose state changed while walking
+                    found.add(account.state());
+                }
+            } finally {
+                locks.unlock(account);
+            }
+        }
+    }
+
+    /**
+     * Finds the accounts with the highest balances.
+     * @param count The number of accounts.
+     * @return The state of each account, highest balance first.
+     */
+    public static List<AccountState> topBalances(int count){
+        return states(indexes().highest(), count);
+    }
+
+    /**
+     * Finds the accounts with a balance below an amount.
+     * @param amount The balance above the last one returned.
+     * @param limit The largest number of accounts returned.
+     * @return The state of each account, lowest balance first.
+     */
+    public static List<AccountState> balancesBelow(long amount, int limit){
+        return states(indexes().below(amount), limit);
+    }
+
+    /**
+     * Finds the accounts with a balance from one amount up to another.
+     * @param from The lowest balance returned.
+     * @param to The balance above the last one returned.
+     * @param limit The largest number of accounts returned.
+     * @return The state of each account, lowest balance first.
+     */
+    public static List<AccountState> balancesBetween(long from, long to, int limit){
+        if (Money.compare(from, to) >= 0){
+            return new ArrayList<>();
+        }
+        return states(indexes().balances(from, to), limit);
+    }
+
+    /**
+     * Reads the accounts of index entries. Each state is read under the lock of its account, and an entry
+     * replaced since the walk found it is skipped, so every returned balance is in order.
+     * @param entries The entries in the order they are returned.
+     * @param limit The largest number of accounts returned.
+     * @return The states.
+     */
+    private static List<AccountState> states(Collection<AccountIndex.Entry> entries, int limit){
+        ArrayList<AccountState> found = new ArrayList<>(Math.min(limit, 1024));
+        for (Iterator<AccountIndex.Entry> it = entries.iterator(); it.hasNext() && found.size() < limit; ){
+            AccountIndex.Entry entry = it.next();
+            Account account = accounts.get(entry.id);
+            locks.lock(account);
+            try {
+                if (account.indexed == entry){
+                    found.add(account.state());
+                }
+            } finally {
+                locks.unlock(account);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the secondary indexes, building them on first use. Building stops all operations once and
+     * looks at every account; from then on each change updates them.
+     * @return The indexes.
+     */
+    private static AccountIndex indexes(){
+        AccountIndex current = indexes;
+        if (current != null){
+            settleHot(); // Brings the entries of the hot accounts up to date
+            return current;
+        }
+        locks.lockAll();
+        try {
+            if (indexes == null){
+                AccountIndex built = new AccountIndex();
+                for (Account account : accounts.values()){
+                    account.settle();
+                    built.update(account);
+                }
+                indexes = built; // Published while every account is locked, so no change is missed
+            }
+            return indexes;
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    /**
+     * Makes the state durable in a directory: the latest snapshot found there is loaded, the changes logged
+     * after it are replayed silently, and from then on every change is logged.
+     * @param dir The data directory, created if needed.
+     * @param snapshotEvery Number of logged changes after which a new snapshot is taken.
+     * @throws IOException If the directory cannot be read or written.
+     */
+    public static void openStorage(Path dir, long snapshotEvery) throws IOException {
+        if (storage != null || mapped != null){
+            throw new IllegalStateException("Storage is already open");
+        }
+        settleHot(); // Logged changes are applied in place
+        storage = BankStorage.open(dir, snapshotEvery);
+    }
+
+    /**
+     * Writes the pending log records, takes a final snapshot and closes the storage.
+     * @throws IOException If writing fails.
+     */
+    public static void closeStorage() throws IOException {
+        BankStorage closing = storage;
+        if (closing == null){
+            return;
+        }
+        locks.lockAll();
+        try {
+            storage = null;
+            closing.close(accounts.values());
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    /**
+     * Creates an account object of the given type. Uses factory method pattern.
+     * @param owner The owner of the account.
+     * @param initial_deposit The initial deposit amount.
+     * @param type The type of the account (e.g., Savings, Checking).
+     * @return The account, null for an unknown type.
+     */
+    static Account newAccount(String owner, long initial_deposit, String type){
+        AccountType accountType = AccountType.of(type);
+        return accountType == null ? null : new Account(owner, initial_deposit, accountType);
+    }
+
+    /**
+     * Creates an account object that keeps its state in a record of a mapped store.
+     * @param owner The owner of the account.
+     * @param type The type id of the account.
+     * @param store The store holding the record.
+     * @param slot The number of the record.
+     * @return The account.
+     */
+    static Account newView(String owner, int type, MappedAccountStore store, int slot){
+        AccountType accountType = AccountType.of(type);
+        if (accountType == null){
+            throw new IllegalArgumentException("Unknown account type id " + type);
+        }
+        return new Account(owner, accountType, store, slot);
+    }
+
+    /**
+     * Keeps the state of all accounts in memory-mapped files in a directory instead of on the heap. Accounts
+     * already stored there are registered again, so a restart continues where the last run stopped.
+     * @param dir The directory of the store, created if needed.
+     * @throws IOException If the files cannot be opened.
+     */
+    public static void openMappedStore(Path dir) throws IOException {
+        if (mapped != null || storage != null || accounts.size() > 0){
+            throw new IllegalStateException("The mapped store has to be opened first, on an empty bank system");
+        }
+        MappedAccountStore store = MappedAccountStore.open(dir);
+        List<String> owners = store.takeOwners();
+        for (int slot = 0; slot < owners.size(); slot++){
+            restore(newView(owners.get(slot), store.type(slot), store, slot));
+        }
+        mapped = store;
+    }
+
+    /**
+     * Writes the mapped store back to disk and closes it.
+     * @throws IOException If writing fails.
+     */
+    public static void closeMappedStore() throws IOException {
+        MappedAccountStore closing = mapped;
+        if (closing == null){
+            return;
+        }
+        locks.lockAll();
+        try {
+            settleHot();
+            closing.close();
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    /**
+     * Removes all accounts, e.g. between benchmark runs. Not allowed while a store is open.
+     */
+    static void reset(){
+        if (storage != null || mapped != null){
+            throw new IllegalStateException("Cannot reset while a store is open");
+        }
+        accounts.clear();
+        fees.clear();
+        indexes = null;
+        hot.clear();
+    }
+
+    /**
+     * Adds accounts loaded in bulk, e.g. by AccountFiles, in the given order. Nothing is printed or logged
+     * per account: owners that already have an account are only counted as rejected, and if the state is
+     * durable a snapshot is taken once all are added.
+     * @param rows The parsed accounts, with types already checked.
+     * @param report Receives the number of added accounts and the rejected ones.
+     */
+    static void load(List<AccountFiles.Row> rows, ImportReport report){
+        accounts.reserve(rows.size());
+        long stamp = versions.beginWrite();
+        try {
+            MappedAccountStore store = mapped;
+            for (AccountFiles.Row row : rows){
+                locks.lock(row.owner);
+                try {
+                    if (accounts.contains(row.owner)){
+                        report.reject("Account " + row.owner + " already exists");
+                        continue;
+                    }
+                    Account account = row.create(store);
+                    account.created = stamp; // Not part of snapshots taken before
+                    accounts.add(account);
+                    index(account);
+                    publish(AccountEvent.CREATED, account, account.getAccountType().name, account.getDeposit());
+                    report.added();
+                } finally {
+                    locks.unlock(row.owner);
+                }
+            }
+        } finally {
+            versions.endWrite(stamp);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the durable state right away, e.g. after a bulk load which is not logged.
+     * @throws IOException If writing fails.
+     */
+    static void saveSnapshot() throws IOException {
+        BankStorage current = storage;
+        if (current == null){
+            return;
+        }
+        locks.lockAll();
+        try {
+            current.snapshot(accounts.values());
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    /**
+     * Adds a restored account, e.g. from a snapshot, without printing or logging anything.
+     * @param account The account.
+     */
+    static void restore(Account account) {
+        if (!accounts.add(account)){
+            throw new IllegalStateException("Duplicate account " + account.getOwner() + " in snapshot");
+        }
+        index(account);
+    }
+
+    /**
+     * Subscribes to the changes of all accounts, see EventStream. The stream is created by the first
+     * subscription, until then changes publish nothing.
+     * @param name The name of the thread of the subscriber.
+     * @param handler The handler of the events.
+     * @return The subscription, closed to stop it.
+     */
+    public static synchronized EventStream.Subscription subscribe(String name, EventHandler handler){
+        if (events == null){
+            events = new EventStream(EVENT_CAPACITY);
+        }
+        return events.subscribe(name, handler);
+    }
+
+    /**
+     * Stops publishing changes and waits until every subscriber has handled the events published so far.
+     * Changes still running meanwhile may not be delivered, so this comes after the last command.
+     */
+    public static synchronized void closeEvents(){
+        EventStream closing = events;
+        if (closing != null){
+            events = null;
+            closing.close();
+        }
+    }
+
+    /**
+     * Publishes a change of an account, if anybody subscribed. The account has to be locked.
+     * @param kind The kind of event, one of the AccountEvent constants.
+     * @param account The changed account.
+     * @param other The receiver of a transfer or the type of a new account, null otherwise.
+     * @param amount The amount of the change.
+     */
+    private static void publish(int kind, Account account, String other, long amount) {
+        EventStream current = events;
+        if (current != null){
+            current.publish(kind, account.getOwner(), other, amount, account.getDeposit(), account.getState());
+        }
+    }
+
+    /**
+     * Publishes a withdrawal or transfer followed by the fee charged on it, if anybody subscribed.
+     * @param kind AccountEvent.WITHDREW or AccountEvent.TRANSFERRED.
+     * @param account The account the money was taken from.
+     * @param other The receiver of a transfer, null for a withdrawal.
+     * @param fund The amount taken.
+     */
+    private static void publishCharged(int kind, Account account, String other, long fund) {
+        if (events == null){
+            return;
+        }
+        publish(kind, account, other, fund);
+        FeeStrategies fees = account.getAccountType().fees;
+        long fee = fees.fee(fund, fees.tier(fund));
+        if (fee != 0){
+            publish(AccountEvent.FEE_CHARGED, account, null, fee);
+        }
+    }
+
+    /**
+     * Folds the deferred credits of an account into its balance. The account has to be locked.
+     * @param account The account.
+     */
+    private static void settle(Account account) {
+        if (account.settle()){
+            index(account);
+        }
+    }
+
+    /**
+     * Folds the deferred credits of all hot accounts into their balances.
+     */
+    private static void settleHot() {
+        for (Account account : hot){
+            locks.lock(account);
+            try {
+                settle(account);
+            } finally {
+                locks.unlock(account);
+            }
+        }
+    }
+
+    /**
+     * Makes an account hot: from then on transfers to it add their credit to a CreditAccumulator instead of
+     * locking it. Only in exact mode, double amounts would round differently in another order.
+     * @param account The account that transfers keep finding locked.
+     */
+    private static synchronized void heat(Account account) {
+        if (account.credits == null && !Money.isDoubleCompat()){
+            if (hot.isEmpty()){
+                lastCooled = System.nanoTime(); // The first pass looks at a whole window of credits
+            }
+            account.credits = new CreditAccumulator();
+            hot.add(account);
+        }
+    }
+
+    /**
+     * Turns hot accounts that received fewer than HOT_CONTENTION credits since the last pass back into plain
+     * ones, so an account that was busy for a while does not stay hot for good. Called from transfers at most
+     * about once per window. Stops all operations: a transfer only defers a credit while it holds the lock of
+     * the sender and sees the accumulator of the receiver, so none is in flight while the accumulators go.
+     */
+    private static synchronized void cool() {
+        if (System.nanoTime() - lastCooled < 1L << HOT_WINDOW_SHIFT){
+            return; // Another transfer did it meanwhile
+        }
+        locks.lockAll();
+        try {
+            for (Iterator<Account> it = hot.iterator(); it.hasNext();){
+                Account account = it.next();
+                if (account.credits.drainCount() < HOT_CONTENTION){
+                    settle(account);
+                    account.credits = null;
+                    it.remove();
+                }
+            }
+        } finally {
+            locks.unlockAll();
+        }
+        lastCooled = System.nanoTime();
+    }
+
+    /**
+     * Updates the secondary indexes after an account changed, if they have been built. The account has to be
+     * locked.
+     * @param account The changed or new account.
+     */
+    private static void index(Account account) {
+        AccountIndex current = indexes;
+        if (current != null){
+            current.update(account);
+        }
+    }
+
+    private static void log(int op, String owner, String other, long amount) {
+        BankStorage current = storage;
+        if (current != null){
+            current.append(op, owner, other, amount);
+        }
+    }
+
+    /**
+     * Forces the changes logged so far to disk, so that no answer is shown for a change that a crash could
+     * still lose. Called before the answers are flushed; cheap when nothing is pending.
+     */
+    public static void commitLog() {
+        BankStorage current = storage;
+        if (current != null){
+            current.commit();
+        }
+    }
+
+    private static void checkpoint() {
+        BankStorage current = storage;
+        if (current != null && current.snapshotDue()){
+            // Stop all operations so the snapshot is consistent with the end of the log
+            locks.lockAll();
+            try {
+                if (current.snapshotDue()){
+                    current.snapshot(accounts.values());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                locks.unlockAll();
+            }
+        }
+    }
+}
+
+/**
+ * List of deposits, withdrawals and transfers run together by BankSystem.execute(), all or nothing.
+ * The operations are kept in parallel arrays, so a payroll run of 100K transfers is a handful of objects.
+ */
+class Batch {
+    private byte[] ops = new byte[16]; // Kind of each operation, one of the CommandReader constants
+    private String[] owners = new String[16];
+    private String[] others = new String[16]; // Receiver of a transfer, null otherwise
+    private long[] amounts = new long[16];
+    private int size;
+
+    /**
+     * Adds a deposit.
+     * @param owner The owner of the account.
+     * @param fund The amount to deposit.
+     * @return This batch.
+     */
+    public Batch deposit(String owner, long fund) {
+        return add(CommandReader.DEPOSIT, owner, null, fund);
+    }
+
+    /**
+     * Adds a withdrawal.
+     * @param owner The owner of the account.
+     * @param fund The amount to withdraw.
+     * @return This batch.
+     */
+    public Batch withdraw(String owner, long fund) {
+        return add(CommandReader.WITHDRAW, owner, null, fund);
+    }
+
+    /**
+     * Adds a transfer.
+     * @param sender The owner of the account the funds are sent from.
+     * @param getter The owner of the account receiving the funds.
+     * @param fund The amount to transfer.
+     * @return This batch.
+     */
+    public Batch transfer(String sender, String getter, long fund) {
+        return add(CommandReader.TRANSFER, sender, getter, fund);
+    }
+
+    /**
+     * Adds an operation of any kind, e.g. when a logged group is read back.
+     * @param op The kind of operation.
+     * @param owner The owner of the account.
+     * @param other The receiver of a transfer, null otherwise.
+     * @param amount The amount of money.
+     * @return This batch.
+     */
+    Batch add(int op, String owner, String other, long amount) {
+        if (size == ops.length){
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+            others = Arrays.copyOf(others, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+        }
+        ops[size] = (byte) op;
+        owners[size] = owner;
+        others[size] = other;
+        amounts[size] = amount;
+        size++;
+        return this;
+    }
+
+    /**
+     * Returns the number of operations.
+     * @return The size of the batch.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the kind of an operation.
+     * @param i The number of the operation.
+     * @return One of CommandReader.DEPOSIT, WITHDRAW and TRANSFER.
+     */
+    public int op(int i) {
+        Objects.checkIndex(i, size);
+        return ops[i];
+    }
+
+    /**
+     * Returns the owner of the account of an operation, the sender of a transfer.
+     * @param i The number of the operation.
+     * @return The owner.
+     */
+    public String owner(int i) {
+        Objects.checkIndex(i, size);
+        return owners[i];
+    }
+
+    /**
+     * Returns the receiver of a transfer.
+     * @param i The number of the operation.
+     * @return The receiver, null for other operations.
+     */
+    public String other(int i) {
+        Objects.checkIndex(i, size);
+        return others[i];
+    }
+
+    /**
+     * Returns the amount of an operation.
+     * @param i The number of the operation.
+     * @return The amount.
+     */
+    public long amount(int i) {
+        Objects.checkIndex(i, size);
+        return amounts[i];
+    }
+}
+
+/**
+ * Outcome of a batch: whether it was applied and, for each operation, its status, fee and the balance of
+ * its account afterwards. When the batch fails, the fees and balances are those the operations would have had.
+ */
+class BatchResult {
+    public static final byte OK = 0;
+    public static final byte NO_ACCOUNT = 1; // The account or the receiver does not exist
+    public static final byte INACTIVE = 2; // The account is deactivated
+    public static final byte INSUFFICIENT = 3; // The balance does not cover the amount
+    private static final String[] MESSAGES = {"OK", "Account does not exist", "Account is inactive", "Insufficient funds"};
+
+    private final byte[] status;
+    private final long[] fees;
+    private final long[] balances;
+    private int failures;
+
+    /**
+     * Creates the result of a batch, all operations successful so far.
+     * @param size The number of operations.
+     */
+    BatchResult(int size) {
+        this.status = new byte[size];
+        this.fees = new long[size];
+        this.balances = new long[size];
+    }
+
+    /**
+     * Records a successful operation.
+     * @param i The number of the operation.
+     * @param fee The fee charged.
+     * @param balance The balance of the account afterwards.
+     */
+    void ok(int i, long fee, long balance) {
+        fees[i] = fee;
+        balances[i] = balance;
+    }
+
+    /**
+     * Records a failed operation.
+     * @param i The number of the operation.
+     * @param reason Why it failed, one of the constants.
+     */
+    void fail(int i, byte reason) {
+        if (status[i] == OK){
+            failures++;
+        }
+        status[i] = reason;
+    }
+
+    /**
+     * Tells whether the batch was applied, which is the case when no operation failed.
+     * @return True if every operation was applied.
+     */
+    public boolean committed() {
+        return failures == 0;
+    }
+
+    /**
+     * Returns the number of failed operations.
+     * @return The number of failures.
+     */
+    public int failures() {
+        return failures;
+    }
+
+    /**
+     * Returns the number of operations.
+     * @return The size of the batch.
+     */
+    public int size() {
+        return status.length;
+    }
+
+    /**
+     * Returns the status of an operation.
+     * @param i The number of the operation.
+     * @return One of the constants.
+     */
+    public byte status(int i) {
+        return status[i];
+    }
+
+    /**
+     * Returns the status of an operation as text.
+     * @param i The number of the operation.
+     * @return The text, e.g. "Insufficient funds".
+     */
+    public String message(int i) {
+        return MESSAGES[status[i]];
+    }
+
+    /**
+     * Returns the fee of an operation, zero for deposits and failed operations.
+     * @param i The number of the operation.
+     * @return The fee.
+     */
+    public long fee(int i) {
+        return fees[i];
+    }
+
+    /**
+     * Returns the balance of the account of an operation, the sender of a transfer, after it.
+     * @param i The number of the operation.
+     * @return The balance.
+     */
+    public long balance(int i) {
+        return balances[i];
+    }
+}
+
+/**
+ * Ledger of the fees charged by transfers and withdrawals. The fees are credited to the system revenue account,
+ * whose balance is the total of the ledger, and aggregated per account type and per time window. All sums are
+ * LongAdders, so crediting a fee never makes concurrent operations wait for each other, and every total is
+ * available at once. Amounts are kept in thousandths, as printed; in double compatibility mode each fee is
+ * rounded to a thousandth when it is credited.
+ */
+class FeeLedger {
+    private static final int DEFAULT_WINDOWS = 24 * 60; // Windows kept, one day of minutes by default
+
+    private final LongAdder[] byType = new LongAdder[AccountType.MAX_TYPES]; // Index is the type id
+    private final long windowMillis;
+    private final int windows;
+    private final ConcurrentHashMap<Long, LongAdder> byWindow = new ConcurrentHashMap<>(); // Key is the window number
+    private volatile long currentWindow = -1;
+    private volatile LongAdder current; // Sum of the current window
+    private volatile boolean replaying; // Fees of replayed operations are not counted in any window
+
+    /**
+     * Creates a ledger with windows of one minute, keeping the last day.
+     */
+    FeeLedger() {
+        this(60_000, DEFAULT_WINDOWS);
+    }
+
+    /**
+     * Creates a ledger.
+     * @param windowMillis The length of a time window in milliseconds.
+     * @param windows The number of windows kept, older ones are dropped.
+     */
+    FeeLedger(long windowMillis, int windows) {
+        this.windowMillis = windowMillis;
+        this.windows = windows;
+        for (int t = 0; t < byType.length; t++){
+            byType[t] = new LongAdder();
+        }
+    }
+
+    /**
+     * Credits a fee to the system revenue account.
+     * @param type The type of the account that paid it.
+     * @param fee The fee.
+     */
+    public void credit(AccountType type, long fee) {
+        long thousandths = Money.isDoubleCompat() ? Math.round(Money.toDouble(fee) * 1000) : fee;
+        if (thousandths == 0){
+            return;
+        }
+        byType[type.id].add(thousandths);
+        if (!replaying){
+            window(System.currentTimeMillis() / windowMillis).add(thousandths);
+        }
+    }
+
+    private LongAdder window(long number) {
+        LongAdder sum = current;
+        if (number == currentWindow && sum != null){
+            return sum;
+        }
+        sum = byWindow.computeIfAbsent(number, n -> new LongAdder());
+        current = sum; // Set before the number, a reader seeing the new number also sees its sum
+        currentWindow = number;
+        byWindow.keySet().removeIf(n -> n <= number - windows);
+        return sum;
+    }
+
+    /**
+     * Returns the balance of the system revenue account, the sum of all fees.
+     * @return The total amount.
+     */
+    public long total() {
+        long sum = 0;
+        for (LongAdder type : byType){
+            sum += type.sum();
+        }
+        return Money.ofThousandths(sum);
+    }
+
+    /**
+     * Returns the fees paid by accounts of one type.
+     * @param type The type name, e.g. "Savings".
+     * @return The total amount, zero for an unknown type.
+     */
+    public long total(String type) {
+        AccountType accountType = AccountType.of(type);
+        return Money.ofThousandths(accountType == null ? 0 : byType[accountType.id].sum());
+    }
+
+    /**
+     * Returns the fees per account type, for every type that was charged any.
+     * @return The amounts by type name, in the order of the type ids.
+     */
+    public Map<String, Long> byType() {
+        LinkedHashMap<String, Long> totals = new LinkedHashMap<>();
+        for (int t = 0; t < byType.length; t++){
+            long sum = byType[t].sum();
+            if (sum != 0){
+                totals.put(AccountType.of(t).name, Money.ofThousandths(sum));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the fees charged in the time windows that are kept.
+     * @return The amounts by the start of their window in epoch milliseconds, oldest first.
+     */
+    public SortedMap<Long, Long> byWindow() {
+        TreeMap<Long, Long> totals = new TreeMap<>();
+        byWindow.forEach((number, sum) -> totals.put(number * windowMillis, Money.ofThousandths(sum.sum())));
+        return totals;
+    }
+
+    /**
+     * Returns the fees charged in the windows that start in a time range.
+     * @param from The start of the range in epoch milliseconds, inclusive.
+     * @param to The end of the range in epoch milliseconds, exclusive.
+     * @return The total amount.
+     */
+    public long between(long from, long to) {
+        long sum = 0;
+        for (Map.Entry<Long, LongAdder> window : byWindow.entrySet()){
+            long start = window.getKey() * windowMillis;
+            if (start >= from && start < to){
+                sum += window.getValue().sum();
+            }
+        }
+        return Money.ofThousandths(sum);
+    }
+
+    /**
+     * Returns the fees per type in thousandths, for the snapshot.
+     * @return The amounts, index is the type id.
+     */
+    long[] thousandths() {
+        long[] sums = new long[byType.length];
+        for (int t = 0; t < sums.length; t++){
+            sums[t] = byType[t].sum();
+        }
+        return sums;
+    }
+
+    /**
+     * Adds fees restored from a snapshot to the totals of a type, without counting them in a window.
+     * @param type The type.
+     * @param thousandths The amount in thousandths.
+     */
+    void restore(AccountType type, long thousandths) {
+        byType[type.id].add(thousandths);
+    }
+
+    /**
+     * Tells the ledger whether operations are being replayed, whose fees were counted in a window before.
+     * @param replaying True while replaying.
+     */
+    void setReplaying(boolean replaying) {
+        this.replaying = replaying;
+    }
+
+    /**
+     * Clears the ledger.
+     */
+    void clear() {
+        for (LongAdder type : byType){
+            type.reset();
+        }
+        byWindow.clear();
+        current = null;
+        currentWindow = -1;
+    }
+}
+
+/**
+ * A change of an account as published on the EventStream. The stream reuses its event objects, so a
+ * subscriber has to copy what it keeps beyond the call that delivers the event.
+ */
+final class AccountEvent {
+    static final int CREATED = 0; // Other is the type name, amount and balance the initial deposit
+    static final int DEPOSITED = 1;
+    static final int WITHDREW = 2;
+    static final int TRANSFERRED = 3; // Other is the receiver, the balance is the sender's
+    static final int FEE_CHARGED = 4; // Charged on a withdrawal or transfer, published right after it
+    static final int STATE_CHANGED = 5; // Only active is set
+    private static final String[] NAMES = {"Created", "Deposited", "Withdrew", "Transferred", "FeeCharged", "StateChanged"};
+
+    long sequence; // Position in the stream, events of one account are in the order of their changes
+    int kind;
+    String owner;
+    String other; // Receiver of a transfer or type of a new account, null otherwise
+    long amount; // See Money for the representation
+    long balance; // Balance of the owner right after the change
+    boolean active;
+
+    /**
+     * Returns the name of a kind of event.
+     * @param kind The kind.
+     * @return The name, e.g. "Deposited".
+     */
+    static String name(int kind) {
+        return NAMES[kind];
+    }
+
+    /**
+     * Writes the event as one line of text: sequence, kind, owner, other or "-", amount, balance and state.
+     * @param line The builder to append to.
+     * @return The builder.
+     */
+    StringBuilder appendTo(StringBuilder line) {
+        line.append(sequence).append(' ').append(NAMES[kind]).append(' ').append(owner).append(' ')
+                .append(other == null ? "-" : other).append(' ');
+        Money.append(line, amount).append(' ');
+        return Money.append(line, balance).append(' ').append(active ? "active" : "inactive");
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+}
+
+/**
+ * Receives the events of an EventStream on the thread of its subscription.
+ */
+interface EventHandler {
+    /**
+     * Handles one event.
+     * @param event The event, only valid during the call.
+     * @param endOfBatch True for the last event available right now, e.g. to flush what was buffered.
+     * @throws Exception If handling fails, which ends the subscription.
+     */
+    void onEvent(AccountEvent event, boolean endOfBatch) throws Exception;
+}
+
+/**
+ * Bounded ring of account events between the threads changing accounts and any number of subscribers,
+ * in the manner of the LMAX Disruptor. Publishers claim a sequence number, fill the preallocated event of
+ * that slot and mark it published; each subscriber follows on its own thread and takes every event
+ * published so far as one batch. A publisher that would overwrite an event a subscriber has not handled
+ * yet waits, so a slow subscriber slows down the changes instead of losing events.
+ * Handlers must not call BankSystem: publishers hold account locks while they wait.
+ */
+class EventStream implements Closeable {
+    private static final VarHandle ROUND = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final int SPINS = 100; // Busy waits before yielding
+    private static final int YIELDS = 200; // Yields before sleeping
+    private final AccountEvent[] ring;
+    private final int[] published; // Round of the event in each slot, -1 before the first
+    private final int mask;
+    private final int shift; // Bits of the slot number, a sequence shifted by them is its round
+    private final AtomicLong claimed = new AtomicLong(-1); // Highest claimed sequence
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    private volatile boolean closed;
+
+    /**
+     * Creates a stream.
+     * @param capacity The number of events held, rounded up to a power of two.
+     */
+    EventStream(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new AccountEvent[size];
+        published = new int[size];
+        for (int i = 0; i < size; i++){
+            ring[i] = new AccountEvent();
+            published[i] = -1;
+        }
+        mask = size - 1;
+        shift = Integer.numberOfTrailingZeros(size);
+    }
+
+    /**
+     * Publishes an event, waiting while the ring is full.
+     * @param kind The kind, one of the AccountEvent constants.
+     * @param owner The owner of the changed account.
+     * @param other The receiver of a transfer or the type of a new account, null otherwise.
+     * @param amount The amount of the change.
+     * @param balance The balance right after the change.
+     * @param active The state right after the change.
+     */
+    void publish(int kind, String owner, String other, long amount, long balance, boolean active) {
+        long sequence = claimed.incrementAndGet();
+        long wrap = sequence - ring.length; // The event this one overwrites
+        for (int spins = 0; wrap > slowest(sequence); spins++){
+            idle(spins);
+        }
+        AccountEvent event = ring[(int) sequence & mask];
+        event.sequence = sequence;
+        event.kind = kind;
+        event.owner = owner;
+        event.other = other;
+        event.amount = amount;
+        event.balance = balance;
+        event.active = active;
+        ROUND.setRelease(published, (int) sequence & mask, (int) (sequence >>> shift));
+    }
+
+    /**
+     * Returns the last sequence all subscribers have handled.
+     * @param sequence The sequence of the caller, the result when there are no subscribers.
+     */
+    private long slowest(long sequence) {
+        long min = sequence;
+        for (Subscription s : subscriptions){
+            min = Math.min(min, s.handled);
+        }
+        return min;
+    }
+
+    /**
+     * Starts a subscriber on a thread of its own. It receives the events published from now on.
+     * @param name The name of the thread.
+     * @param handler The handler of the events.
+     * @return The subscription, closed to stop it.
+     */
+    synchronized Subscription subscribe(String name, EventHandler handler) {
+        if (closed){
+            throw new IllegalStateException("The event stream is closed");
+        }
+        Subscription subscription = new Subscription(handler, claimed.get());
+        Subscription[] all = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        all[all.length - 1] = subscription;
+        subscriptions = all;
+        subscription.thread = new Thread(subscription::run, name);
+        subscription.thread.setDaemon(true);
+        subscription.thread.start();
+        return subscription;
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        ArrayList<Subscription> all = new ArrayList<>(Arrays.asList(subscriptions));
+        all.remove(subscription);
+        subscriptions = all.toArray(new Subscription[0]);
+    }
+
+    /**
+     * Stops taking subscriptions and waits until every subscriber has handled all published events.
+     */
+    @Override
+    public void close() {
+        synchronized (this){
+            closed = true;
+        }
+        for (Subscription s : subscriptions){
+            s.close();
+        }
+    }
+
+    private static void idle(int spins) {
+        if (spins < SPINS){
+            Thread.onSpinWait();
+        } else if (spins < SPINS + YIELDS){
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000); // Nothing to do for a while, do not take the processor from others
+        }
+    }
+
+    /**
+     * A subscriber following the stream on its own thread.
+     */
+    final class Subscription implements Closeable {
+        private final EventHandler handler;
+        volatile long handled; // Last sequence handled, publishers may overwrite it and everything before
+        private volatile boolean stopping;
+        private Thread thread;
+        private volatile Throwable failure;
+
+        private Subscription(EventHandler handler, long start) {
+            this.handler = handler;
+            this.handled = start;
+        }
+
+        private void run() {
+            try {
+                for (int spins = 0; ; ){
+                    long next = handled + 1;
+                    long last = next - 1; // Last sequence of the batch
+                    long end = claimed.get();
+                    while (last < end && (int) ROUND.getAcquire(published, (int) (last + 1) & mask) == (int) ((last + 1) >>> shift)){
+                        last++;
+                    }
+                    if (last < next){
+                        if (stopping && end == handled){ // Everything claimed before close() is handled
+                            return;
+                        }
+                        idle(spins++);
+                        continue;
+                    }
+                    spins = 0;
+                    for (long s = next; s <= last; s++){
+                        handler.onEvent(ring[(int) s & mask], s == last);
+                    }
+                    handled = last; // Frees the slots of the whole batch at once
+                }
+            } catch (Throwable e) {
+                failure = e;
+                System.err.println("Event subscriber " + Thread.currentThread().getName() + " failed: " + e);
+            } finally {
+                remove(this);
+            }
+        }
+
+        /**
+         * Returns the last sequence the subscriber has handled.
+         * @return The sequence, -1 before the first.
+         */
+        public long handled() {
+            return handled;
+        }
+
+        /**
+         * Returns why the handler stopped early.
+         * @return The exception thrown by the handler, null if it did not fail.
+         */
+        public Throwable failure() {
+            return failure;
+        }
+
+        /**
+         * Stops the subscriber once it has handled the events published so far, and waits for it.
+         */
+        @Override
+        public void close() {
+            stopping = true;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
+
+/**
+ * Counters and latency histograms of the bank system operations. Off by default: every hook then only reads
+ * one flag, so the calls can stay in the hot paths. When enabled, counts and fees go to striped LongAdders
+ * and latencies to a LatencyHistogram per operation, and the results are readable through JMX and as text.
+ */
+class Metrics {
+    public static final int LOOKUP = 7; // Operation of getAccount, after the CommandReader constants
+    public static final int BATCH = 8; // Operation of BankSystem.execute
+    public static final int DUPLICATE = 4; // Reason of a failure: already exists, activated or deactivated
+    public static final int UNKNOWN_TYPE = 5; // Reason of a failure: an account of an unknown type
+    // Reasons 1 to 3 are the failures of BatchResult: no account, inactive and insufficient funds
+    private static final String[] OPERATIONS = {"Create", "Transfer", "Deposit", "Withdraw", "Activate",
+            "Deactivate", "View", "Lookup", "Batch"};
+    private static final String[] REASONS = {"", "NoAccount", "Inactive", "Insufficient", "Duplicate", "UnknownType"};
+
+    private static volatile boolean enabled;
+    private static final LongAdder[] counts = new LongAdder[OPERATIONS.length];
+    private static final LongAdder[][] failures = new LongAdder[OPERATIONS.length][REASONS.length];
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private static final LongAdder fees = new LongAdder(); // Fees collected in thousandths
+    private static ScheduledExecutorService dumper; // Writes the periodic dump, null if there is none
+    private Metrics() {}
+
+    static {
+        for (int op = 0; op < OPERATIONS.length; op++){
+            counts[op] = new LongAdder();
+            latencies[op] = new LatencyHistogram();
+            for (int r = 0; r < REASONS.length; r++){
+                failures[op][r] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Turns the metrics on, registers them with the platform MBean server as "bank:type=Metrics" and, if asked
+     * to, writes a dump to standard error periodically. Standard output keeps only the answers to commands.
+     * @param dumpSeconds Seconds between two dumps, 0 for none.
+     */
+    public static synchronized void enable(long dumpSeconds) {
+        if (enabled){
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName("bank:type=Metrics"));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register the metrics MBean", e);
+        }
+        if (dumpSeconds > 0){
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleAtFixedRate(() -> System.err.print(dump()), dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+        enabled = true;
+    }
+
+    /**
+     * Tells whether the metrics are collected.
+     * @return True if enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing an operation.
+     * @return The start time, 0 when the metrics are off.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Counts an operation and records how long it took.
+     * @param op The operation, one of the CommandReader constants, LOOKUP or BATCH.
+     * @param start The time returned by start().
+     */
+    public static void end(int op, long start) {
+        if (start != 0){
+            counts[op].increment();
+            latencies[op].record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts a failed operation.
+     * @param op The operation.
+     * @param reason Why it failed, one of the BatchResult failures, DUPLICATE or UNKNOWN_TYPE.
+     */
+    public static void fail(int op, int reason) {
+        if (enabled){
+            failures[op][reason].increment();
+        }
+    }
+
+    /**
+     * Adds a collected fee.
+     * @param fee The fee.
+     */
+    public static void fee(long fee) {
+        if (enabled){
+            fees.add(Money.isDoubleCompat() ? Math.round(Money.toDouble(fee) * 1000) : fee);
+        }
+    }
+
+    /**
+     * Clears all counters and histograms.
+     */
+    public static void reset() {
+        for (int op = 0; op < OPERATIONS.length; op++){
+            counts[op].reset();
+            latencies[op].reset();
+            for (LongAdder failure : failures[op]){
+                failure.reset();
+            }
+        }
+        fees.reset();
+    }
+
+    /**
+     * Writes all metrics as a table, one row per operation that ran, latencies in nanoseconds.
+     * @return The text.
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(String.format("%-10s %10s %9s %9s %12s %9s %11s %9s %9s %9s %9s %9s %11s%n", "operation", "count",
+                "noAccount", "inactive", "insufficient", "duplicate", "unknownType", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (int op = 0; op < OPERATIONS.length; op++){
+            long count = counts[op].sum();
+            if (count == 0){
+                continue;
+            }
+            long[] histogram = latencies[op].snapshot();
+            sb.append(String.format("%-10s %10d %9d %9d %12d %9d %11d %9d %9d %9d %9d %9d %11d%n", OPERATIONS[op], count,
+                    failures[op][1].sum(), failures[op][2].sum(), failures[op][3].sum(), failures[op][4].sum(),
+                    failures[op][5].sum(), latencies[op].mean(), LatencyHistogram.percentile(histogram, 0.5),
+                    LatencyHistogram.percentile(histogram, 0.9), LatencyHistogram.percentile(histogram, 0.99),
+                    LatencyHistogram.percentile(histogram, 0.999), latencies[op].max()));
+        }
+        sb.append("Fees collected: $").append(Money.format(Money.ofThousandths(fees.sum()))).append(System.lineSeparator());
+        return sb.toString();
+    }
+
+    /**
+     * Stops the periodic dump, if any.
+     */
+    public static synchronized void stopDump() {
+        if (dumper != null){
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * JMX view of the metrics. Attributes are named after the operation and the value, e.g. TransferCount,
+     * TransferInsufficient or TransferP99Nanos, plus FeesCollected; the operations are dump and reset.
+     * A dynamic MBean, so the classes of the bank system can stay package-private.
+     */
+    private static class MetricsBean implements DynamicMBean {
+        private static final String[] VALUES = {"Count", "NoAccount", "Inactive", "Insufficient", "Duplicate",
+                "UnknownType", "MeanNanos", "P50Nanos", "P90Nanos", "P99Nanos", "P999Nanos", "MaxNanos"};
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (attribute.equals("FeesCollected")){
+                return Money.format(Money.ofThousandths(fees.sum()));
+            }
+            for (int op = 0; op < OPERATIONS.length; op++){
+                if (attribute.startsWith(OPERATIONS[op])){
+                    String value = attribute.substring(OPERATIONS[op].length());
+                    for (int v = 0; v < VALUES.length; v++){
+                        if (VALUES[v].equals(value)){
+                            return value(op, v);
+                        }
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        private long value(int op, int v) {
+            return switch (v) {
+                case 0 -> counts[op].sum();
+                case 1, 2, 3, 4, 5 -> failures[op][v].sum();
+                case 6 -> latencies[op].mean();
+                case 7 -> LatencyHistogram.percentile(latencies[op].snapshot(), 0.5);
+                case 8 -> LatencyHistogram.percentile(latencies[op].snapshot(), 0.9);
+                case 9 -> LatencyHistogram.percentile(latencies[op].snapshot(), 0.99);
+                case 10 -> LatencyHistogram.percentile(latencies[op].snapshot(), 0.999);
+                default -> latencies[op].max();
+            };
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes){
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, like the JMX specification asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            switch (actionName) {
+                case "dump" -> {
+                    return dump();
+                }
+                case "reset" -> {
+                    reset();
+                    return null;
+                }
+                default -> throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+            attributes.add(new MBeanAttributeInfo("FeesCollected", "java.lang.String", "Fees collected", true, false, false));
+            for (String op : OPERATIONS){
+                for (String value : VALUES){
+                    attributes.add(new MBeanAttributeInfo(op + value, "long", op + " " + value, true, false, false));
+                }
+            }
+            MBeanOperationInfo[] operations = {
+                    new MBeanOperationInfo("dump", "All metrics as text", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                    new MBeanOperationInfo("reset", "Clears all metrics", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)
+            };
+            return new MBeanInfo(Metrics.class.getName(), "Bank system metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+        }
+    }
+}
+
+/**
+ * Histogram of latencies in nanoseconds with a bounded relative error, the way HdrHistogram buckets values:
+ * values below 32 get a bucket each, larger ones share a bucket with the values that agree in the highest
+ * five bits, so every bucket is at most 1/16 wide relative to its values. Counts are striped over several
+ * arrays picked by thread, so threads recording at the same time rarely write to the same cache lines.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 4; // Bits of a value below its highest bit that select the bucket
+    private static final int LINEAR = 2 << SUB_BITS; // Values with a bucket of their own
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * (1 << SUB_BITS);
+    private static final int STRIPES = 8;
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder total = new LongAdder(); // Sum of all values, for the mean
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Creates an empty histogram.
+     */
+    LatencyHistogram() {
+        for (int s = 0; s < STRIPES; s++){
+            stripes[s] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records one value.
+     * @param nanos The latency, negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(bucket(value));
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     * @return The mean, 0 if there are none.
+     */
+    public long mean() {
+        long count = 0;
+        for (long c : snapshot()){
+            count += c;
+        }
+        return count == 0 ? 0 : total.sum() / count;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     * @return The maximum.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    public void reset() {
+        for (AtomicLongArray stripe : stripes){
+            for (int b = 0; b < BUCKETS; b++){
+                stripe.set(b, 0);
+            }
+        }
+        total.reset();
+        max.reset();
+    }
+
+    /**
+     * Adds up the stripes.
+     * @return The count of each bucket.
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes){
+            for (int b = 0; b < BUCKETS; b++){
+                counts[b] += stripe.get(b);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns a percentile of a snapshot, as the largest value of the bucket it falls into.
+     * @param counts The snapshot.
+     * @param quantile The quantile, e.g. 0.99.
+     * @return The value, 0 if the snapshot is empty.
+     */
+    public static long percentile(long[] counts, double quantile) {
+        long count = 0;
+        for (long c : counts){
+            count += c;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++){
+            seen += counts[b];
+            if (seen >= rank && seen > 0){
+                return highest(b);
+            }
+        }
+        return 0;
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // At least SUB_BITS + 1
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+    }
+
+    static long highest(int bucket) {
+        if (bucket < LINEAR){
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+        long sub = (bucket - LINEAR) % (1 << SUB_BITS);
+        long next = ((1L << SUB_BITS) + sub + 1) << (exponent - SUB_BITS);
+        return next - 1 < 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
+
+/**
+ * Index of bank accounts keyed by owner name. Gives constant time lookups for every command
+ * while keeping the creation order of the accounts for iteration. Safe for concurrent use: lookups never
+ * block and adding an account is atomic.
+ * Every account also gets a dense integer id when it is added, its position in the creation order, and can be
+ * looked up by it with a plain array access. A second table finds the id from the raw bytes of a name, so a
+ * command line is resolved without decoding the owner into a string first.
+ */
+class AccountRegistry {
+    private final ConcurrentHashMap<String, Account> byOwner = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Account> inOrder = new ConcurrentLinkedQueue<>(); // Creation order
+    public static final int NOT_ASCII = -2; // Result of find() for names it cannot compare byte by byte
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Account[].class);
+    private volatile Account[] byId = new Account[1024]; // Accounts by id, replaced by a larger copy when full
+    private volatile NameTable byName = new NameTable(2048); // Accounts by the hash of the name, at most half full
+    private int next; // Id of the next account, guarded by this
+
+    /**
+     * Adds an account unless its owner is already registered, and gives it the next id.
+     * @param account The account to add.
+     * @return True if the account was added, false if the owner already has an account.
+     */
+    public synchronized boolean add(Account account){
+        if (byOwner.containsKey(account.getOwner())){
+            return false;
+        }
+        Account[] table = byId;
+        if (next == table.length){
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        account.id = next;
+        table[next++] = account;
+        byId = table; // Publishes the new slot
+        NameTable names = byName;
+        if (next * 2 > names.accounts.length){
+            names = rehash(names.accounts.length * 2, next - 1);
+        }
+        names.insert(account);
+        byName = names;
+        byOwner.put(account.getOwner(), account);
+        inOrder.add(account);
+        return true;
+    }
+
+    /**
+     * Makes room for a number of accounts about to be added, e.g. by a bulk load, so the tables grow once
+     * instead of doubling again and again.
+     * @param extra The number of accounts.
+     */
+    public synchronized void reserve(int extra){
+        int needed = next + extra;
+        if (byId.length < needed){
+            byId = Arrays.copyOf(byId, Integer.highestOneBit(needed - 1) << 1);
+        }
+        if (byName.accounts.length < 2 * needed){
+            byName = rehash(Integer.highestOneBit(2 * needed - 1) << 1, next);
+        }
+    }
+
+    private NameTable rehash(int size, int count){
+        NameTable names = new NameTable(size);
+        Account[] table = byId;
+        for (int i = 0; i < count; i++){
+            names.insert(table[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Finds an account by its id.
+     * @param id The id of the account.
+     * @return The account, null if there is none with this id.
+     */
+    public Account get(int id){
+        Account[] table = byId;
+        return id >= 0 && id < table.length ? table[id] : null;
+    }
+
+    /**
+     * Finds the id of an account by the bytes of the owner's name, which hash like the name itself as long as
+     * they are ASCII.
+     * @param bytes The array holding the name.
+     * @param start The index of the first byte of the name.
+     * @param end The index after the name.
+     * @return The id, -1 if there is no such owner, NOT_ASCII for names with other characters.
+     */
+    public int find(byte[] bytes, int start, int end){
+        int h = 0;
+        for (int p = start; p < end; p++){
+            byte b = bytes[p];
+            if (b < 0){
+                return NOT_ASCII;
+            }
+            h = 31 * h + b;
+        }
+        NameTable names = byName;
+        int mask = names.accounts.length - 1;
+        for (int i = NameTable.spread(h) & mask; ; i = (i + 1) & mask){
+            Account account = (Account) SLOT.getAcquire(names.accounts, i); // Slots are filled while others read
+            if (account == null){
+                return -1;
+            }
+            if (names.hashes[i] == h && sameName(account.getOwner(), bytes, start, end)){
+                return account.id;
+            }
+        }
+    }
+
+    private static boolean sameName(String owner, byte[] bytes, int start, int end){
+        if (owner.length() != end - start){
+            return false;
+        }
+        for (int k = 0; k < owner.length(); k++){
+            if (owner.charAt(k) != bytes[start + k]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the account of an owner.
+     * @param owner The owner's name.
+     * @return The account if found, null otherwise.
+     */
+    public Account get(String owner){
+        return byOwner.get(owner);
+    }
+
+    /**
+     * Checks whether an owner already has an account.
+     * @param owner The owner's name.
+     * @return True if the owner is registered.
+     */
+    public boolean contains(String owner){
+        return byOwner.containsKey(owner);
+    }
+
+    /**
+     * Removes all accounts.
+     */
+    public synchronized void clear(){
+        byOwner.clear();
+        inOrder.clear();
+        byId = new Account[1024];
+        byName = new NameTable(2048);
+        next = 0;
+    }
+
+    /**
+     * Returns the number of registered accounts.
+     * @return The number of accounts.
+     */
+    public int size(){
+        return byOwner.size();
+    }
+
+    /**
+     * Returns the accounts in insertion order.
+     * @return A read-only view of all accounts.
+     */
+    public Collection<Account> values(){
+        return Collections.unmodifiableCollection(inOrder);
+    }
+
+    /**
+     * Open addressing table of the accounts by the hash of their owner's name. The hashes are kept next to the
+     * slots, so probing only follows an account whose name has the right hash.
+     */
+    private static final class NameTable {
+        final int[] hashes;
+        final Account[] accounts; // Filled with release stores after the hash, read with acquire loads
+
+        NameTable(int size){
+            hashes = new int[size];
+            accounts = new Account[size];
+        }
+
+        void insert(Account account){
+            int h = account.getOwner().hashCode();
+            int mask = accounts.length - 1;
+            int i = spread(h) & mask;
+            while (accounts[i] != null){
+                i = (i + 1) & mask;
+            }
+            hashes[i] = h;
+            SLOT.setRelease(accounts, i, account);
+        }
+
+        static int spread(int h){
+            return h ^ (h >>> 16);
+        }
+    }
+}
+
+/**
+ * Secondary indexes over the accounts: the ids by type and activation state, and the accounts sorted by
+ * balance. BankSystem updates an account's entries while it holds the lock of the account, so a query walks
+ * only the accounts it returns instead of every account.
+ */
+class AccountIndex {
+    private static final Comparator<Entry> BY_BALANCE = (a, b) -> {
+        int order = Money.compare(a.balance, b.balance);
+        return order != 0 ? order : Integer.compare(a.id, b.id);
+    };
+    private final ConcurrentSkipListSet<Entry> byBalance = new ConcurrentSkipListSet<>(BY_BALANCE);
+    private final List<ConcurrentSkipListSet<Integer>> byTypeState = new ArrayList<>(AccountType.MAX_TYPES * 2);
+
+    /**
+     * Balance and state of an account as last indexed. Entries are compared by balance, then by id.
+     */
+    static final class Entry {
+        final int id;
+        final long balance;
+        final boolean active;
+
+        Entry(int id, long balance, boolean active) {
+            this.id = id;
+            this.balance = balance;
+            this.active = active;
+        }
+    }
+
+    /**
+     * Creates empty indexes.
+     */
+    AccountIndex() {
+        for (int i = 0; i < AccountType.MAX_TYPES * 2; i++){
+            byTypeState.add(new ConcurrentSkipListSet<>());
+        }
+    }
+
+    /**
+     * Brings the entries of an account up to date with its balance and state, adding them if the account is
+     * new. The account has to be locked.
+     * @param account The changed or new account.
+     */
+    void update(Account account){
+        Entry old = account.indexed;
+        long balance = account.getDeposit();
+        boolean active = account.getState();
+        if (old != null && old.balance == balance && old.active == active){
+            return;
+        }
+        Entry entry = new Entry(account.id, balance, active);
+        if (old != null){
+            byBalance.remove(old); // Also when only the state changed, the set has to hold the current entry
+        }
+        byBalance.add(entry);
+        int type = account.getAccountType().id * 2;
+        if (old == null){
+            byTypeState.get(type + (active ? 1 : 0)).add(account.id);
+        } else if (old.active != active){
+            byTypeState.get(type + (old.active ? 1 : 0)).remove(account.id);
+            byTypeState.get(type + (active ? 1 : 0)).add(account.id);
+        }
+        account.indexed = entry;
+    }
+
+    /**
+     * Returns the ids of the accounts of a type in one state, in the order they were created.
+     * @param type The type id.
+     * @param active True for the active accounts, false for the inactive ones.
+     * @return A live view of the ids.
+     */
+    NavigableSet<Integer> ids(int type, boolean active){
+        return byTypeState.get(type * 2 + (active ? 1 : 0));
+    }
+
+    /**
+     * Returns the entries with a balance from one amount up to another, lowest first.
+     * @param from The lowest balance included.
+     * @param to The balance above the last one included.
+     * @return A live view of the entries.
+     */
+    NavigableSet<Entry> balances(long from, long to){
+        return byBalance.subSet(new Entry(-1, from, false), new Entry(-1, to, false));
+    }
+
+    /**
+     * Returns the entries with a balance below an amount, lowest first.
+     * @param to The balance above the last one included.
+     * @return A live view of the entries.
+     */
+    NavigableSet<Entry> below(long to){
+        return byBalance.headSet(new Entry(-1, to, false));
+    }
+
+    /**
+     * Returns all entries, highest balance first.
+     * @return A live view of the entries.
+     */
+    NavigableSet<Entry> highest(){
+        return byBalance.descendingSet();
+    }
+}
+
+/**
+ * Striped locks guarding the state of accounts. Each account maps to one of a fixed number of locks, so
+ * operations on unrelated accounts rarely contend, and pairs of accounts are always locked in stripe order,
+ * so two transfers in opposite directions cannot deadlock.
+ */
+class AccountLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * Creates the locks.
+     * @param concurrency The expected number of threads, the number of stripes is a multiple of it.
+     */
+    public AccountLocks(int concurrency) {
+        int size = Integer.highestOneBit(Math.max(16, concurrency * 16) - 1) << 1; // Next power of two
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++){
+            stripes[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Locks a single account.
+     * @param account The account.
+     */
+    public void lock(Account account) {
+        stripes[stripe(account)].lock();
+    }
+
+    /**
+     * Tells whether the stripe of an account is held, by any thread. Only a hint, it may change right away.
+     * @param account The account.
+     * @return True if the stripe is locked.
+     */
+    public boolean isLocked(Account account) {
+        return stripes[stripe(account)].isLocked();
+    }
+
+    /**
+     * Locks the stripe of an owner name, e.g. while its account is created.
+     * @param owner The owner's name.
+     */
+    public void lock(String owner) {
+        stripes[stripe(owner)].lock();
+    }
+
+    /**
+     * Unlocks the stripe of an owner name.
+     * @param owner The owner's name.
+     */
+    public void unlock(String owner) {
+        stripes[stripe(owner)].unlock();
+    }
+
+    /**
+     * Unlocks a single account.
+     * @param account The account.
+     */
+    public void unlock(Account account) {
+        stripes[stripe(account)].unlock();
+    }
+
+    /**
+     * Locks two accounts, which may share a stripe or even be the same account.
+     * @param a The first account.
+     * @param b The second account.
+     */
+    public void lock(Account a, Account b) {
+        int i = stripe(a);
+        int j = stripe(b);
+        stripes[Math.min(i, j)].lock();
+        if (i != j){
+            stripes[Math.max(i, j)].lock();
+        }
+    }
+
+    /**
+     * Unlocks two accounts locked together.
+     * @param a The first account.
+     * @param b The second account.
+     */
+    public void unlock(Account a, Account b) {
+        int i = stripe(a);
+        int j = stripe(b);
+        if (i != j){
+            stripes[Math.max(i, j)].unlock();
+        }
+        stripes[Math.min(i, j)].unlock();
+    }
+
+    /**
+     * Locks every stripe, which stops all operations, e.g. to take a snapshot.
+     */
+    public void lockAll() {
+        for (ReentrantLock stripe : stripes){
+            stripe.lock();
+        }
+    }
+
+    /**
+     * Unlocks every stripe.
+     */
+    public void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--){
+            stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Locks a group of accounts, each stripe once and in stripe order, e.g. for a batch of operations.
+     * @param accounts The accounts.
+     * @param count How many of the accounts to lock, from the start of the array.
+     * @return The locked stripes, to be passed to unlock(int[]).
+     */
+    public int[] lock(Account[] accounts, int count) {
+        boolean[] used = new boolean[stripes.length];
+        int n = 0;
+        for (int a = 0; a < count; a++){
+            int i = stripe(accounts[a]);
+            if (!used[i]){
+                used[i] = true;
+                n++;
+            }
+        }
+        int[] locked = new int[n];
+        n = 0;
+        for (int i = 0; i < used.length; i++){
+            if (used[i]){
+                stripes[i].lock();
+                locked[n++] = i;
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Unlocks stripes locked together.
+     * @param locked The stripes returned by lock(Account[], int).
+     */
+    public void unlock(int[] locked) {
+        for (int i = locked.length - 1; i >= 0; i--){
+            stripes[locked[i]].unlock();
+        }
+    }
+
+    private int stripe(Account account) {
+        return stripe(account.getOwner());
+    }
+
+    private int stripe(String owner) {
+        int h = owner.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
+
+/**
+ * Clock of the multi-version account state. Every change runs in the current epoch, and opening a snapshot
+ * ends the epoch: once the changes still running in it are finished, the snapshot sees exactly the changes of
+ * that epoch and the ones before. Changes of later epochs first save the state they replace, a pre-image
+ * kept on the account, which is what the snapshot reads instead; while no snapshot is open nothing is saved.
+ */
+class VersionClock {
+    private static final int SPINS = 100; // Busy waits before yielding the processor
+    private volatile long epoch = 1;
+    private final LongAdder[] writing = {new LongAdder(), new LongAdder()}; // Running changes by epoch parity
+    private final TreeMap<Long, Integer> open = new TreeMap<>(); // Open snapshots by epoch, guarded by this
+    private volatile long oldestOpen = Long.MAX_VALUE; // Epoch of the oldest open snapshot
+    private volatile long drained; // Last epoch whose changes have all finished
+
+    /**
+     * Registers a change that is about to start.
+     * @return The epoch of the change, to be passed to endWrite().
+     */
+    public long beginWrite() {
+        while (true){
+            long e = epoch;
+            LongAdder counter = writing[(int) e & 1];
+            counter.increment();
+            if (epoch == e){ // Otherwise a snapshot just ended the epoch and may not wait for this change
+                // Changes of the previous epoch may still be waiting for an account lock. Taking it before them
+                // would save a pre-image that misses their change, so wait until they are done
+                for (int spins = 0; drained < e - 1; spins++){
+                    pause(spins);
+                }
+                return e;
+            }
+            counter.decrement();
+        }
+    }
+
+    /**
+     * Registers the end of a change.
+     * @param e The epoch returned by beginWrite().
+     */
+    public void endWrite(long e) {
+        writing[(int) e & 1].decrement();
+    }
+
+    /**
+     * Returns the epoch of the oldest open snapshot, which changes of later epochs have to save their
+     * pre-images for.
+     * @return The epoch, Long.MAX_VALUE if no snapshot is open.
+     */
+    public long oldestOpen() {
+        return oldestOpen;
+    }
+
+    /**
+     * Ends the current epoch and waits for the changes still running in it.
+     * @return The epoch seen by the new snapshot.
+     */
+    public synchronized long open() {
+        long e = epoch;
+        open.merge(e, 1, Integer::sum);
+        oldestOpen = open.firstKey(); // Before the new epoch, so its changes know they have to save pre-images
+        epoch = e + 1;
+        LongAdder counter = writing[(int) e & 1];
+        for (int spins = 0; counter.sum() != 0; spins++){
+            pause(spins); // Changes are short, they only hold a few account locks
+        }
+        drained = e;
+        return e;
+    }
+
+    /**
+     * Waits a little, spinning first and then giving up the processor, since the thread waited for may not be
+     * running at all when there are more threads than cores.
+     * @param spins How often the caller already waited.
+     */
+    private static void pause(int spins) {
+        if (spins < SPINS){
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Closes a snapshot.
+     * @param e The epoch returned by open().
+     */
+    public synchronized void close(long e) {
+        if (open.merge(e, -1, Integer::sum) == 0){
+            open.remove(e);
+        }
+        oldestOpen = open.isEmpty() ? Long.MAX_VALUE : open.firstKey();
+    }
+}
+
+/**
+ * Consistent point-in-time view of all accounts for reports, read without any account lock while deposits and
+ * transfers keep running. Has to be closed, since changes save pre-images as long as it is open.
+ */
+class BankSnapshot implements AutoCloseable {
+    private final VersionClock clock;
+    private final long epoch;
+    private final Collection<Account> accounts;
+    private boolean closed;
+
+    /**
+     * Opens a snapshot.
+     * @param clock The version clock of the accounts.
+     * @param accounts All accounts, accounts created after the snapshot are skipped.
+     */
+    BankSnapshot(VersionClock clock, Collection<Account> accounts) {
+        this.clock = clock;
+        this.epoch = clock.open();
+        this.accounts = accounts;
+    }
+
+    /**
+     * Returns the state of an account.
+     * @param owner The owner of the account.
+     * @return The state, null if the account did not exist when the snapshot was taken.
+     */
+    public AccountState get(String owner) {
+        Account account = BankSystem.getAccount(owner);
+        return account == null || account.created > epoch ? null : account.stateAt(epoch);
+    }
+
+    /**
+     * Runs an action for the state of every account, in the order the accounts were created.
+     * @param action The action.
+     */
+    public void forEach(Consumer<AccountState> action) {
+        for (Account account : accounts){
+            if (account.created <= epoch){
+                action.accept(account.stateAt(epoch));
+            }
+        }
+    }
+
+    /**
+     * Runs an action for every account with its state, in the order the accounts were created. The history of
+     * the account up to the length given by the state is the history at the time of the snapshot.
+     * @param action The action.
+     */
+    public void forEachAccount(BiConsumer<Account, AccountState> action) {
+        for (Account account : accounts){
+            if (account.created <= epoch){
+                action.accept(account, account.stateAt(epoch));
+            }
+        }
+    }
+
+    /**
+     * Adds up the balances of all accounts.
+     * @return The total balance.
+     */
+    public long totalBalance() {
+        long total = 0;
+        for (Account account : accounts){
+            if (account.created <= epoch){
+                total = Money.add(total, account.stateAt(epoch).getBalance());
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void close() {
+        if (!closed){
+            closed = true;
+            clock.close(epoch);
+        }
+    }
+}
+
+/**
+ * Immutable state of an account at some point in time, as read from a BankSnapshot.
+ */
+final class AccountState {
+    private final String owner;
+    private final String type;
+    private final long balance;
+    private final boolean active;
+    private final int history;
+
+    /**
+     * Creates a state.
+     * @param owner The owner.
+     * @param type The type name.
+     * @param balance The balance.
+     * @param active The activation state.
+     * @param history The number of entries in the transaction history.
+     */
+    AccountState(String owner, String type, long balance, boolean active, int history) {
+        this.owner = owner;
+        this.type = type;
+        this.balance = balance;
+        this.active = active;
+        this.history = history;
+    }
+
+    /**
+     * Returns the owner of the account.
+     * @return The owner.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns the type name of the account.
+     * @return The type, e.g. "Savings".
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the balance at that time.
+     * @return The balance.
+     */
+    public long getBalance() {
+        return balance;
+    }
+
+    /**
+     * Returns the activation state at that time.
+     * @return True if the account was active.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns the length of the history at that time; the entries before it never change.
+     * @return The number of entries.
+     */
+    public int getHistory() {
+        return history;
+    }
+}
+
+/**
+ * Large file mapped into memory in fixed-size segments, grown on demand. Values never cross a segment
+ * border as long as they are aligned to their size.
+ */
+class MappedRegion implements Closeable {
+    private static final int SEGMENT_BITS = 26; // 64 MB per mapping
+    private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * Opens or creates a file.
+     * @param path The file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedRegion(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int count = (int) ((channel.size() + SEGMENT_MASK) >>> SEGMENT_BITS);
+        MappedByteBuffer[] mapped = new MappedByteBuffer[Math.max(count, 1)];
+        for (int i = 0; i < mapped.length; i++){
+            mapped[i] = map(i);
+        }
+        this.segments = mapped;
+    }
+
+    /**
+     * Makes sure the file covers a position, mapping more segments if needed.
+     * @param position The position in the file.
+     * @throws IOException If the file cannot be extended.
+     */
+    public synchronized void ensure(long position) throws IOException {
+        int needed = (int) (position >>> SEGMENT_BITS) + 1;
+        if (needed > segments.length){
+            MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+            for (int i = segments.length; i < needed; i++){
+                grown[i] = map(i);
+            }
+            segments = grown;
+        }
+    }
+
+    /**
+     * Reads a long.
+     * @param position The position in the file.
+     * @return The value.
+     */
+    public long getLong(long position) {
+        return segment(position).getLong((int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * Writes a long.
+     * @param position The position in the file.
+     * @param value The value.
+     */
+    public void putLong(long position, long value) {
+        segment(position).putLong((int) (position & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Reads a int.
+     * @param position The position in the file.
+     * @return The value.
+     */
+    public int getInt(long position) {
+        return segment(position).getInt((int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * Writes a int.
+     * @param position The position in the file.
+     * @param value The value.
+     */
+    public void putInt(long position, int value) {
+        segment(position).putInt((int) (position & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Reads a int written with putIntRelease(), so that everything written before it is seen too.
+     * @param position The position in the file, a multiple of 4.
+     * @return The value.
+     */
+    public int getIntAcquire(long position) {
+        return (int) INT.getAcquire(segment(position), (int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * Writes a int after everything written before it, for readers using getIntAcquire().
+     * @param position The position in the file, a multiple of 4.
+     * @param value The value.
+     */
+    public void putIntRelease(long position, int value) {
+        INT.setRelease(segment(position), (int) (position & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Reads a byte.
+     * @param position The position in the file.
+     * @return The value.
+     */
+    public byte get(long position) {
+        return segment(position).get((int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * Writes a byte.
+     * @param position The position in the file.
+     * @param value The value.
+     */
+    public void put(long position, byte value) {
+        segment(position).put((int) (position & SEGMENT_MASK), value);
+    }
+
+    /**
+     * Writes all changes back to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments){
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private MappedByteBuffer segment(long position) {
+        return segments[(int) (position >>> SEGMENT_BITS)];
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) index << SEGMENT_BITS, 1L << SEGMENT_BITS);
+    }
+}
+
+/**
+ * Account storage outside the Java heap, for very large numbers of accounts. Every account has a fixed-size
+ * record in a memory-mapped file and its history in chains of blocks in a second mapped file; owner names are
+ * appended to a third file in record order. Account objects only hold the owner and the record number and read
+ * everything else from the mapping, so the garbage collector has little to scan and a restart can reuse the
+ * files as they are.
+ * Record layout: balance, initial deposit (8 bytes each), first and last journal block, journal size
+ * (4 bytes each), active flag and type id (1 byte each), padded to 32 bytes.
+ * Block layout: next block, 13 kind bytes, 13 amounts of 8 bytes, padded to 128 bytes.
+ */
+class MappedAccountStore implements Closeable {
+    static final int BLOCK_ENTRIES = 13;
+    private static final int HEADER = 64; // Start of the first record or block
+    private static final int RECORD = 32;
+    private static final int BLOCK = 128;
+    private static final int MAGIC = 0x4D415053; // "MAPS"
+    private static final int VERSION = 1;
+
+    private final MappedRegion records;
+    private final MappedRegion journal;
+    private final DataOutputStream names;
+    private List<String> owners = new ArrayList<>(); // Owners already in the files when opened
+    private int count; // Number of records
+    private int blocks; // Number of journal blocks
+
+    private MappedAccountStore(MappedRegion records, MappedRegion journal, DataOutputStream names) {
+        this.records = records;
+        this.journal = journal;
+        this.names = names;
+    }
+
+    /**
+     * Opens the store in a directory, creating it if needed.
+     * @param dir The directory.
+     * @return The store.
+     * @throws IOException If the files cannot be opened or belong to another money mode.
+     */
+    public static MappedAccountStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path namesFile = dir.resolve("owners.bin");
+        MappedRegion records = new MappedRegion(dir.resolve("accounts.bin"));
+        MappedRegion journal = new MappedRegion(dir.resolve("journal.bin"));
+        int count = 0;
+        int blocks = 0;
+        ArrayList<String> owners = new ArrayList<>();
+        if (records.getInt(0) == MAGIC){
+            if (records.getInt(4) != VERSION || (records.get(8) != 0) != Money.isDoubleCompat()){
+                throw new IOException("Mapped store in " + dir + " has another format or money mode");
+            }
+            count = records.getInt(12);
+            blocks = records.getInt(16);
+            long valid = 0; // Names beyond the record count belong to an interrupted create
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(namesFile)))) {
+                for (int i = 0; i < count; i++){
+                    String owner = in.readUTF();
+                    owners.add(owner);
+                    valid += 2 + utfLength(owner);
+                }
+            }
+            try (FileChannel channel = FileChannel.open(namesFile, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        } else {
+            records.putInt(0, MAGIC);
+            records.putInt(4, VERSION);
+            records.put(8, (byte) (Money.isDoubleCompat() ? 1 : 0));
+            Files.deleteIfExists(namesFile);
+        }
+        DataOutputStream names = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(namesFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+        MappedAccountStore store = new MappedAccountStore(records, journal, names);
+        store.count = count;
+        store.blocks = blocks;
+        store.owners.addAll(owners);
+        return store;
+    }
+
+    /**
+     * Hands over the owners of the records that were in the files when the store was opened, in record order.
+     * The store keeps no reference to them afterwards.
+     * @return The owners.
+     */
+    public List<String> takeOwners() {
+        List<String> taken = owners;
+        owners = new ArrayList<>();
+        return taken;
+    }
+
+    /**
+     * Adds the record of a new account with its initial deposit as first history entry.
+     * @param owner The owner.
+     * @param type The type id.
+     * @param initial The initial deposit.
+     * @return The number of the record.
+     */
+    public synchronized int allocate(String owner, int type, long initial) {
+        int slot = count;
+        long at = record(slot);
+        try {
+            records.ensure(at + RECORD);
+            names.writeUTF(owner);
+            names.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        records.putLong(at, initial);
+        records.putLong(at + 8, initial);
+        int block = newBlock();
+        records.putInt(at + 16, block);
+        records.putInt(at + 20, block);
+        records.putInt(at + 24, 0);
+        records.put(at + 28, (byte) 1);
+        records.put(at + 29, (byte) type);
+        journalAdd(slot, TransactionJournal.INITIAL_DEPOSIT, initial);
+        count = slot + 1;
+        records.putInt(12, count); // The record only counts once it is complete
+        return slot;
+    }
+
+    /**
+     * Returns the balance of a record.
+     * @param slot The number of the record.
+     * @return The balance.
+     */
+    public long balance(int slot) {
+        return records.getLong(record(slot));
+    }
+
+    /**
+     * Sets the balance of a record.
+     * @param slot The number of the record.
+     * @param value The new balance.
+     */
+    public void balance(int slot, long value) {
+        records.putLong(record(slot), value);
+    }
+
+    /**
+     * Returns the initial deposit of a record.
+     * @param slot The number of the record.
+     * @return The initial deposit.
+     */
+    public long initial(int slot) {
+        return records.getLong(record(slot) + 8);
+    }
+
+    /**
+     * Returns the activation state of a record.
+     * @param slot The number of the record.
+     * @return True if the account is active.
+     */
+    public boolean active(int slot) {
+        return records.get(record(slot) + 28) != 0;
+    }
+
+    /**
+     * Sets the activation state of a record.
+     * @param slot The number of the record.
+     * @param value The new state.
+     */
+    public void active(int slot, boolean value) {
+        records.put(record(slot) + 28, (byte) (value ? 1 : 0));
+    }
+
+    /**
+     * Returns the type id of a record.
+     * @param slot The number of the record.
+     * @return The type id.
+     */
+    public int type(int slot) {
+        return records.get(record(slot) + 29);
+    }
+
+    /**
+     * Appends an entry to the history of a record. The account has to be locked by the caller.
+     * @param slot The number of the record.
+     * @param kind The kind of transaction.
+     * @param amount The amount.
+     */
+    public void journalAdd(int slot, byte kind, long amount) {
+        long at = record(slot);
+        int size = records.getInt(at + 24);
+        int tail = records.getInt(at + 20);
+        int index = size % BLOCK_ENTRIES;
+        if (size > 0 && index == 0){ // Tail block is full
+            int next = newBlock();
+            journal.putInt(block(tail), next);
+            records.putInt(at + 20, next);
+            tail = next;
+        }
+        long b = block(tail);
+        journal.put(b + 4 + index, kind);
+        journal.putLong(b + 24 + 8L * index, amount);
+        records.putIntRelease(at + 24, size + 1); // Publishes the entry to readers without the lock
+    }
+
+    /**
+     * Returns the number of history entries of a record.
+     * @param slot The number of the record.
+     * @return The number of entries.
+     */
+    public int journalSize(int slot) {
+        return records.getIntAcquire(record(slot) + 24);
+    }
+
+    /**
+     * Returns the first history block of a record.
+     * @param slot The number of the record.
+     * @return The block number.
+     */
+    public int journalHead(int slot) {
+        return records.getInt(record(slot) + 16);
+    }
+
+    /**
+     * Returns the block following a history block.
+     * @param block The block number.
+     * @return The next block, -1 at the end of the chain.
+     */
+    public int nextBlock(int block) {
+        return journal.getInt(block(block));
+    }
+
+    /**
+     * Returns the kind of an entry in a history block.
+     * @param block The block number.
+     * @param index The entry within the block.
+     * @return The kind.
+     */
+    public byte blockKind(int block, int index) {
+        return journal.get(block(block) + 4 + index);
+    }
+
+    /**
+     * Returns the amount of an entry in a history block.
+     * @param block The block number.
+     * @param index The entry within the block.
+     * @return The amount.
+     */
+    public long blockAmount(int block, int index) {
+        return journal.getLong(block(block) + 24 + 8L * index);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        names.close();
+        journal.close();
+        records.close();
+    }
+
+    private synchronized int newBlock() {
+        int block = blocks;
+        try {
+            journal.ensure(block(block) + BLOCK);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        journal.putInt(block(block), -1);
+        blocks = block + 1;
+        records.putInt(16, blocks);
+        return block;
+    }
+
+    private static long record(int slot) {
+        return HEADER + (long) slot * RECORD;
+    }
+
+    private static int utfLength(String text) { // Bytes written by DataOutput.writeUTF, without the length
+        int length = 0;
+        for (int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            length += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static long block(int block) {
+        return HEADER + (long) block * BLOCK;
+    }
+}
+
+/**
+ * Bulk import and export of account state, for onboarding large portfolios and for moving the state between
+ * systems. Two formats are supported:
+ * CSV, one account per line, either "owner,type,initial" for a new account or "owner,type,initial,balance,active"
+ * followed by one field per history entry, the letter of its kind (I, D, T, W) and the amount, which restores an
+ * account as exportCsv() wrote it. The file is UTF-8; owners and types that contain a comma or a quote are
+ * written in double quotes, with quotes doubled. A first line starting with "owner," is a header and skipped.
+ * Amounts are written to the thousandth, so in double compatibility mode only the binary format keeps them
+ * exactly.
+ * Binary, the records of the durable snapshot in blocks with their length in front, so blocks can be read in
+ * parallel.
+ * Imports parse chunks of the file on several threads, then the accounts are added in file order, so the first
+ * line of an owner wins. Nothing is printed per account; invalid lines and duplicates end up in the report.
+ * Exports read a BankSnapshot, so they are consistent and do not stop the operations meanwhile.
+ */
+class AccountFiles {
+    private static final int MAGIC = 0x42414E58; // "BANX"
+    private static final int VERSION = 1;
+    private static final int BLOCK_ACCOUNTS = 4096; // Accounts per block of the binary format
+    private static final long CHUNK_BYTES = 32L << 20; // Bytes of a CSV file parsed by one task
+    private static final String KINDS = "IDTW"; // Letters of the history entry kinds in CSV, by kind
+    private AccountFiles() {}
+
+    /**
+     * Adds the accounts of a file, CSV or binary, to the bank system. The format is told by the first bytes.
+     * If the state is durable, a snapshot is taken at the end instead of logging every account.
+     * @param file The file.
+     * @param threads The number of threads parsing the file.
+     * @return The numbers of added and rejected accounts.
+     * @throws IOException If the file cannot be read, or is binary with a wrong header.
+     * @throws InterruptedException If the import is interrupted.
+     */
+    public static ImportReport importFile(Path file, int threads) throws IOException, InterruptedException {
+        ImportReport report = new ImportReport();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(Integer.BYTES);
+            boolean binary = channel.read(head, 0) == Integer.BYTES && head.getInt(0) == MAGIC;
+            List<Callable<List<Row>>> tasks = binary ? binaryTasks(channel, report) : csvTasks(channel, report);
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+            try {
+                ArrayDeque<Future<List<Row>>> running = new ArrayDeque<>();
+                int next = 0;
+                while (next < tasks.size() || !running.isEmpty()){
+                    while (next < tasks.size() && running.size() < 2 * threads){ // Bounds the parsed rows in memory
+                        running.add(pool.submit(tasks.get(next++)));
+                    }
+                    BankSystem.load(running.remove().get(), report); // In file order
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException){
+                    throw (IOException) cause;
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        BankSystem.saveSnapshot();
+        return report;
+    }
+
+    /**
+     * Writes all accounts with their complete state to a CSV file.
+     * @param file The file, replaced if it exists.
+     * @return The number of accounts written.
+     * @throws IOException If writing fails.
+     */
+    public static long exportCsv(Path file) throws IOException {
+        try (BankSnapshot snapshot = BankSystem.snapshot();
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file.toFile()), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("owner,type,initial,balance,active,history\n");
+            CsvWriter writer = new CsvWriter(out);
+            snapshot.forEachAccount(writer);
+            return writer.count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes all accounts with their complete state to a binary file.
+     * @param file The file, replaced if it exists.
+     * @return The number of accounts written.
+     * @throws IOException If writing fails.
+     */
+    public static long exportBinary(Path file) throws IOException {
+        try (BankSnapshot snapshot = BankSystem.snapshot();
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(Money.isDoubleCompat());
+            BlockWriter writer = new BlockWriter(out);
+            snapshot.forEachAccount(writer);
+            writer.flush();
+            return writer.count;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static List<Callable<List<Row>>> csvTasks(FileChannel channel, ImportReport report) throws IOException {
+        List<Callable<List<Row>>> tasks = new ArrayList<>();
+        long size = channel.size();
+        long start = 0;
+        while (start < size){
+            long end = lineEnd(channel, Math.min(size, start + CHUNK_BYTES));
+            long from = start;
+            tasks.add(() -> parseCsv(CommandReader.csv(channel, from, end), from == 0, report));
+            start = end;
+        }
+        return tasks;
+    }
+
+    private static long lineEnd(FileChannel channel, long at) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long size = channel.size();
+        while (at < size){
+            buf.clear();
+            int n = channel.read(buf, at);
+            for (int k = 0; k < n; k++){
+                if (buf.get(k) == '\n'){
+                    return at + k + 1;
+                }
+            }
+            at += n;
+        }
+        return size;
+    }
+
+    private static List<Row> parseCsv(CommandReader in, boolean first, ImportReport report) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        while (in.nextLine()){
+            if (in.isBlank()){
+                continue;
+            }
+            if (first){
+                first = false;
+                if (in.text(0).equals("owner")){
+                    continue; // Header
+                }
+            }
+            try {
+                rows.add(parseCsv(in));
+            } catch (RuntimeException e) {
+                report.reject("Invalid line for " + in.text(0) + ": " + e.getMessage());
+            }
+        }
+        return rows;
+    }
+
+    private static Row parseCsv(CommandReader in) {
+        int fields = in.tokens();
+        if (fields != 3 && fields < 5){
+            throw new IllegalArgumentException("Expected 3 or at least 5 fields, found " + fields);
+        }
+        String owner = in.text(0);
+        AccountType type = type(in.text(1));
+        long initial = in.amount(2);
+        if (fields == 3){
+            return new Row(owner, type, initial, initial, true, null);
+        }
+        long balance = in.amount(3);
+        String active = in.text(4);
+        if (!active.equals("true") && !active.equals("false")){
+            throw new IllegalArgumentException("Expected true or false for the state, found " + active);
+        }
+        TransactionJournal history = new TransactionJournal();
+        if (fields == 5){
+            history.add(TransactionJournal.INITIAL_DEPOSIT, initial);
+        }
+        for (int i = 5; i < fields; i++){
+            int kind = KINDS.indexOf(in.byteAt(i, 0));
+            if (kind < 0){
+                throw new IllegalArgumentException("Unknown history entry " + in.text(i));
+            }
+            history.add((byte) kind, in.amount(i, 1));
+        }
+        return new Row(owner, type, initial, balance, active.equals("true"), history);
+    }
+
+    private static List<Callable<List<Row>>> binaryTasks(FileChannel channel, ImportReport report) throws IOException {
+        ByteBuffer header = read(channel, 0, 2 * Integer.BYTES + 1);
+        header.getInt(); // Magic, already checked
+        int version = header.getInt();
+        if (version != VERSION){
+            throw new IOException("Unknown version " + version + " of the account file");
+        }
+        if ((header.get() != 0) != Money.isDoubleCompat()){
+            throw new IOException("The account file was written in the other money mode");
+        }
+        List<Callable<List<Row>>> tasks = new ArrayList<>();
+        long size = channel.size();
+        long at = header.limit();
+        while (at < size){
+            ByteBuffer block = read(channel, at, 2 * Integer.BYTES);
+            int count = block.getInt();
+            int length = block.getInt();
+            long from = at + 2 * Integer.BYTES;
+            tasks.add(() -> parseBlock(read(channel, from, length), count, report));
+            at = from + length;
+        }
+        return tasks;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long at, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()){
+            if (channel.read(buf, at + buf.position()) < 0){
+                throw new EOFException("The account file is cut off");
+            }
+        }
+        return buf.flip();
+    }
+
+    private static List<Row> parseBlock(ByteBuffer block, int count, ImportReport report) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block.array(), 0, block.limit()));
+        List<Row> rows = new ArrayList<>(count);
+        for (int a = 0; a < count; a++){
+            String type = in.readUTF();
+            String owner = in.readUTF();
+            long initial = in.readLong();
+            long balance = in.readLong();
+            boolean active = in.readBoolean();
+            int size = in.readInt();
+            TransactionJournal history = new TransactionJournal();
+            for (int i = 0; i < size; i++){
+                history.add(in.readByte(), in.readLong());
+            }
+            try {
+                rows.add(new Row(owner, type(type), initial, balance, active, history));
+            } catch (RuntimeException e) {
+                report.reject("Invalid account " + owner + ": " + e.getMessage());
+            }
+        }
+        return rows;
+    }
+
+    private static AccountType type(String name) {
+        AccountType type = AccountType.of(name);
+        if (type == null){
+            throw new IllegalArgumentException("Unknown account type " + name);
+        }
+        return type;
+    }
+
+    /**
+     * An account read from a file, not yet added.
+     */
+    static final class Row {
+        final String owner;
+        final AccountType type;
+        final long initial;
+        final long balance;
+        final boolean active;
+        final TransactionJournal history; // Complete history, null for a new account
+
+        Row(String owner, AccountType type, long initial, long balance, boolean active, TransactionJournal history) {
+            if (history != null && (history.size() == 0 || history.kind(0) != TransactionJournal.INITIAL_DEPOSIT
+                    || history.amount(0) != initial)){
+                throw new IllegalArgumentException("The history has to start with the initial deposit");
+            }
+            this.owner = owner;
+            this.type = type;
+            this.initial = initial;
+            this.balance = balance;
+            this.active = active;
+            this.history = history;
+        }
+
+        /**
+         * Creates the account, on the heap or in a mapped store.
+         * @param store The mapped store, null for a heap account.
+         * @return The account.
+         */
+        Account create(MappedAccountStore store) {
+            if (store == null){
+                Account account = new Account(owner, initial, type);
+                if (history != null){
+                    account.restore(balance, active, history);
+                }
+                return account;
+            }
+            int slot = store.allocate(owner, type.id, initial);
+            if (history != null){
+                for (int i = 1; i < history.size(); i++){ // The initial deposit is there already
+                    store.journalAdd(slot, history.kind(i), history.amount(i));
+                }
+                store.balance(slot, balance);
+                store.active(slot, active);
+            }
+            return BankSystem.newView(owner, type.id, store, slot);
+        }
+    }
+
+    /**
+     * Writes the accounts of a snapshot as CSV lines.
+     */
+    private static final class CsvWriter implements BiConsumer<Account, AccountState> {
+        private final Writer out;
+        private final StringBuilder line = new StringBuilder(256);
+        long count;
+
+        CsvWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void accept(Account account, AccountState state) {
+            line.setLength(0);
+            field(state.getOwner());
+            field(state.getType());
+            Money.append(line, account.getInitial_deposit()).append(',');
+            Money.append(line, state.getBalance()).append(',').append(state.isActive());
+            TransactionJournal history = account.getJournal();
+            for (int i = 0; i < state.getHistory(); i++){
+                Money.append(line.append(',').append(KINDS.charAt(history.kind(i))), history.amount(i));
+            }
+            line.append('\n');
+            try {
+                out.append(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            count++;
+        }
+
+        /**
+         * Appends a text field and its comma, in double quotes if it contains a comma or a quote.
+         * @param text The text.
+         */
+        private void field(String text) {
+            if (text.indexOf(',') < 0 && text.indexOf('"') < 0){
+                line.append(text).append(',');
+            } else {
+                line.append('"').append(text.replace("\"", "\"\"")).append("\",");
+            }
+        }
+    }
+
+    /**
+     * Writes the accounts of a snapshot as blocks of binary records.
+     */
+    private static final class BlockWriter implements BiConsumer<Account, AccountState> {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(1 << 16);
+        private final DataOutputStream records = new DataOutputStream(block);
+        private int inBlock; // Records in the current block
+        long count;
+
+        BlockWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void accept(Account account, AccountState state) {
+            try {
+                records.writeUTF(state.getType());
+                records.writeUTF(state.getOwner());
+                records.writeLong(account.getInitial_deposit());
+                records.writeLong(state.getBalance());
+                records.writeBoolean(state.isActive());
+                TransactionJournal history = account.getJournal();
+                records.writeInt(state.getHistory());
+                for (int i = 0; i < state.getHistory(); i++){
+                    records.writeByte(history.kind(i));
+                    records.writeLong(history.amount(i));
+                }
+                count++;
+                if (++inBlock == BLOCK_ACCOUNTS){
+                    flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the current block, if it has any records.
+         * @throws IOException If writing fails.
+         */
+        void flush() throws IOException {
+            if (inBlock > 0){
+                out.writeInt(inBlock);
+                out.writeInt(block.size());
+                block.writeTo(out);
+                block.reset();
+                inBlock = 0;
+            }
+        }
+    }
+}
+
+/**
+ * Outcome of a bulk import: how many accounts were added and why the others were not.
+ */
+class ImportReport {
+    private static final int MAX_REASONS = 100; // Reasons kept, later rejections are only counted
+    private final LongAdder added = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final List<String> reasons = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Counts an added account.
+     */
+    void added() {
+        added.increment();
+    }
+
+    /**
+     * Counts a rejected account or line. Called by the threads parsing the file.
+     * @param reason Why it was rejected.
+     */
+    void reject(String reason) {
+        rejected.increment();
+        synchronized (reasons){
+            if (reasons.size() < MAX_REASONS){
+                reasons.add(reason);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of added accounts.
+     * @return The number.
+     */
+    public long getAdded() {
+        return added.sum();
+    }
+
+    /**
+     * Returns the number of rejected accounts and invalid lines.
+     * @return The number.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns why accounts were rejected, for the first rejections.
+     * @return The reasons.
+     */
+    public List<String> getReasons() {
+        return reasons;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append("Imported ").append(getAdded()).append(" accounts, rejected ")
+                .append(getRejected());
+        synchronized (reasons){
+            for (String reason : reasons){
+                sb.append(System.lineSeparator()).append("  ").append(reason);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * Durable storage of the bank state in a directory: snapshots of all accounts plus a write-ahead log of the
+ * changes made since the last snapshot. Log files are numbered by generation; a snapshot records the last
+ * generation it contains, so a crash between writing a snapshot and deleting old logs never replays a change
+ * twice.
+ */
+class BankStorage {
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final int SNAPSHOT_MAGIC = 0x42414E4B; // "BANK"
+    private static final int SNAPSHOT_VERSION = 2; // Version 2 added the fee ledger
+
+    private final Path dir;
+    private final long snapshotEvery;
+    private volatile WriteAheadLog log; // Replaced by a snapshot, committed by threads holding no account lock
+    private final AtomicLong sinceSnapshot = new AtomicLong(); // Changes logged since the last snapshot
+
+    private BankStorage(Path dir, long snapshotEvery) {
+        this.dir = dir;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    /**
+     * Opens a data directory and restores its state into the bank system, which has to be empty.
+     * @param dir The data directory, created if needed.
+     * @param snapshotEvery Number of logged changes after which a snapshot is due.
+     * @return The storage, ready to log new changes.
+     * @throws IOException If reading or writing fails.
+     */
+    public static BankStorage open(Path dir, long snapshotEvery) throws IOException {
+        Files.createDirectories(dir);
+        BankStorage storage = new BankStorage(dir, snapshotEvery);
+        long covered = storage.loadSnapshot();
+        long generation = covered;
+        OutputSink out = Output.getSink();
+        Output.setSink(new OutputSink() { // Replayed changes were already reported when they were made
+            @Override
+            public void writeLine(CharSequence line) {}
+
+            @Override
+            public void writePart(CharSequence part) {}
+
+            @Override
+            public void flush() {}
+        });
+        BankSystem.getFeeLedger().setReplaying(true);
+        try {
+            for (long g : WriteAheadLog.generations(dir)){
+                if (g > covered){
+                    storage.sinceSnapshot.addAndGet(WriteAheadLog.replay(WriteAheadLog.file(dir, g), BankStorage::apply));
+                }
+                generation = Math.max(generation, g);
+            }
+        } finally {
+            BankSystem.getFeeLedger().setReplaying(false);
+            Output.setSink(out);
+        }
+        storage.log = new WriteAheadLog(WriteAheadLog.file(dir, generation + 1), generation + 1);
+        return storage;
+    }
+
+    /**
+     * Logs a change. Called while the accounts involved are locked, so the log has the order of the changes.
+     * @param op The kind of change, one of the CommandReader constants.
+     * @param owner The owner of the changed account.
+     * @param other The receiver of a transfer or the type of a new account, null otherwise.
+     * @param amount The amount of money involved.
+     */
+    public void append(int op, String owner, String other, long amount) {
+        try {
+            log.append(op, owner, other, amount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sinceSnapshot.incrementAndGet();
+    }
+
+    /**
+     * Logs the operations of a batch as one group, which is replayed either whole or not at all. Called while
+     * the accounts involved are locked.
+     * @param batch The operations.
+     */
+    public void appendGroup(Batch batch) {
+        try {
+            log.appendGroup(batch);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        sinceSnapshot.addAndGet(batch.size());
+    }
+
+    /**
+     * Writes the changes logged so far and forces them to disk.
+     */
+    public void commit() {
+        try {
+            log.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Tells whether enough changes were logged to take a snapshot.
+     * @return True if a snapshot is due.
+     */
+    public boolean snapshotDue() {
+        return sinceSnapshot.get() >= snapshotEvery;
+    }
+
+    /**
+     * Writes a snapshot of all accounts and starts a new log. No operation may run meanwhile.
+     * @param accounts All accounts.
+     * @throws IOException If writing fails.
+     */
+    public void snapshot(Collection<Account> accounts) throws IOException {
+        log.close(); // Commits the tail, the snapshot covers this generation
+        long generation = log.generation();
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeBoolean(Money.isDoubleCompat());
+            out.writeLong(generation);
+            out.writeInt(accounts.size());
+            for (Account account : accounts){
+                out.writeUTF(account.getType());
+                out.writeUTF(account.getOwner());
+                out.writeLong(account.getInitial_deposit());
+                out.writeLong(account.getDeposit());
+                out.writeBoolean(account.getState());
+                TransactionJournal journal = account.getJournal();
+                out.writeInt(journal.size());
+                for (int i = 0; i < journal.size(); i++){
+                    out.writeByte(journal.kind(i));
+                    out.writeLong(journal.amount(i));
+                }
+            }
+            long[] fees = BankSystem.getFeeLedger().thousandths(); // Revenue per type, by name as ids may change
+            int charged = 0;
+            for (long fee : fees){
+                charged += fee != 0 ? 1 : 0;
+            }
+            out.writeInt(charged);
+            for (int t = 0; t < fees.length; t++){
+                if (fees[t] != 0){
+                    out.writeUTF(AccountType.of(t).name);
+                    out.writeLong(fees[t]);
+                }
+            }
+            out.flush();
+            file.write(ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue()).array()); // Not part of the checksum
+            file.getChannel().force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long g : WriteAheadLog.generations(dir)){
+            if (g <= generation){
+                Files.deleteIfExists(WriteAheadLog.file(dir, g));
+            }
+        }
+        log = new WriteAheadLog(WriteAheadLog.file(dir, generation + 1), generation + 1);
+        sinceSnapshot.set(0);
+    }
+
+    /**
+     * Commits the log and takes a final snapshot if anything changed since the last one.
+     * @param accounts All accounts.
+     * @throws IOException If writing fails.
+     */
+    public void close(Collection<Account> accounts) throws IOException {
+        if (sinceSnapshot.get() > 0){
+            snapshot(accounts);
+        }
+        log.close();
+        Files.deleteIfExists(WriteAheadLog.file(dir, log.generation())); // Empty, the snapshot has it all
+    }
+
+    private long loadSnapshot() throws IOException {
+        Path path = dir.resolve(SNAPSHOT);
+        if (!Files.exists(path)){
+            return 0;
+        }
+        byte[] data = Files.readAllBytes(path);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - Long.BYTES);
+        if (data.length < Long.BYTES || crc.getValue() != ByteBuffer.wrap(data, data.length - Long.BYTES, Long.BYTES).getLong()){
+            throw new IOException("Snapshot " + path + " is corrupt");
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - Long.BYTES));
+        if (in.readInt() != SNAPSHOT_MAGIC){
+            throw new IOException("Snapshot " + path + " has an unknown format");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > SNAPSHOT_VERSION){
+            throw new IOException("Snapshot " + path + " has an unknown version " + version);
+        }
+        if (in.readBoolean() != Money.isDoubleCompat()){
+            throw new IOException("Snapshot " + path + " was written in the other money mode");
+        }
+        long generation = in.readLong();
+        int count = in.readInt();
+        for (int a = 0; a < count; a++){
+            String type = in.readUTF();
+            String owner = in.readUTF();
+            long initial = in.readLong();
+            long balance = in.readLong();
+            boolean active = in.readBoolean();
+            int size = in.readInt();
+            TransactionJournal journal = new TransactionJournal();
+            for (int i = 0; i < size; i++){
+                journal.add(in.readByte(), in.readLong());
+            }
+            Account account = BankSystem.newAccount(owner, initial, type);
+            if (account == null){
+                throw new IOException("Unknown account type " + type + " in snapshot");
+            }
+            account.restore(balance, active, journal);
+            BankSystem.restore(account);
+        }
+        if (version >= 2){
+            int charged = in.readInt();
+            for (int t = 0; t < charged; t++){
+                String type = in.readUTF();
+                long fees = in.readLong();
+                AccountType accountType = AccountType.of(type);
+                if (accountType == null){
+                    throw new IOException("Unknown account type " + type + " in snapshot");
+                }
+                BankSystem.getFeeLedger().restore(accountType, fees);
+            }
+        }
+        return generation;
+    }
+
+    private static void apply(int op, String owner, String other, long amount) {
+        switch (op) {
+            case CommandReader.CREATE -> BankSystem.createAccount(owner, amount, other);
+            case CommandReader.TRANSFER -> BankSystem.Transfer(owner, other, amount);
+            case CommandReader.DEPOSIT -> BankSystem.Deposit(amount, owner);
+            case CommandReader.WITHDRAW -> BankSystem.Withdrawal(amount, owner);
+            case CommandReader.ACTIVATE -> BankSystem.Activate(owner);
+            case CommandReader.DEACTIVATE -> BankSystem.Deactivate(owner);
+            default -> throw new IllegalStateException("Unknown log record " + op);
+        }
+    }
+}
+
+/**
+ * Append-only binary log of applied changes. Records are collected in memory and written with a single
+ * write and fsync once a group is full (group commit), so the cost of fsync is shared by many records.
+ * A group is also committed before the answers to its changes are shown, see BankSystem.commitLog(), so a
+ * change that was reported is never lost; a pipeline of commands still shares one fsync.
+ * Each record is [length][op, owner, other, amount][CRC32]; a torn record at the end is cut off on replay.
+ */
+class WriteAheadLog implements Closeable {
+    private static final int GROUP_BYTES = 1 << 16; // Pending bytes that trigger a commit
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int GROUP = 7; // Record starting a group of records, its amount is their number
+
+    /**
+     * Receiver of replayed records.
+     */
+    interface Handler {
+        void apply(int op, String owner, String other, long amount);
+    }
+
+    private final FileChannel channel;
+    private final long generation;
+    private final ByteBuffer pending = ByteBuffer.allocate(GROUP_BYTES * 2);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Creates a new, empty log file.
+     * @param path The file.
+     * @param generation The number of the file.
+     * @throws IOException If the file cannot be created.
+     */
+    public WriteAheadLog(Path path, long generation) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.generation = generation;
+    }
+
+    /**
+     * Returns the generation of this log.
+     * @return The generation.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Adds a record to the current group, committing the group when it is full.
+     * @param op The kind of change.
+     * @param owner The owner of the changed account.
+     * @param other The receiver or the account type, may be null.
+     * @param amount The amount of money.
+     * @throws IOException If a commit fails.
+     */
+    public synchronized void append(int op, String owner, String other, long amount) throws IOException {
+        byte[] ownerBytes = owner.getBytes(StandardCharsets.UTF_8);
+        byte[] otherBytes = other == null ? new byte[0] : other.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + ownerBytes.length + 2 + otherBytes.length + Long.BYTES;
+        if (pending.remaining() < length + 2 * Integer.BYTES){
+            commit();
+        }
+        pending.putInt(length);
+        int start = pending.position();
+        pending.put((byte) op).putShort((short) ownerBytes.length).put(ownerBytes)
+                .putShort((short) otherBytes.length).put(otherBytes).putLong(amount);
+        crc.reset();
+        crc.update(pending.array(), start, length);
+        pending.putInt((int) crc.getValue());
+        if (pending.position() >= GROUP_BYTES){
+            commit();
+        }
+    }
+
+    /**
+     * Adds the operations of a batch as a group: a group record with their number followed by one record per
+     * operation, with no other records in between. A group cut short by a crash is dropped on replay.
+     * @param batch The operations.
+     * @throws IOException If a commit fails.
+     */
+    public synchronized void appendGroup(Batch batch) throws IOException {
+        append(GROUP, "", null, batch.size());
+        for (int i = 0; i < batch.size(); i++){
+            append(batch.op(i), batch.owner(i), batch.other(i), batch.amount(i));
+        }
+    }
+
+    /**
+     * Writes the pending records and forces them to disk.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void commit() throws IOException {
+        if (pending.position() == 0){ // Also after close(), a snapshot may have replaced this log meanwhile
+            return;
+        }
+        pending.flip();
+        while (pending.hasRemaining()){
+            channel.write(pending);
+        }
+        pending.clear();
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()){
+            commit();
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the path of the log file of a generation.
+     * @param dir The data directory.
+     * @param generation The generation.
+     * @return The path.
+     */
+    public static Path file(Path dir, long generation) {
+        return dir.resolve(PREFIX + generation + SUFFIX);
+    }
+
+    /**
+     * Lists the generations of the log files in a directory.
+     * @param dir The data directory.
+     * @return The generations in increasing order.
+     * @throws IOException If the directory cannot be listed.
+     */
+    public static List<Long> generations(Path dir) throws IOException {
+        ArrayList<Long> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files){
+                String name = file.getFileName().toString();
+                result.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Replays the records of a log file, cutting off a torn or corrupt tail. The records of a group are only
+     * replayed once the group is complete, an incomplete group at the end is cut off with the tail.
+     * @param path The log file.
+     * @param handler Receiver of the records.
+     * @return The number of records replayed.
+     * @throws IOException If the file cannot be read.
+     */
+    public static long replay(Path path, Handler handler) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+        CRC32 check = new CRC32();
+        long records = 0;
+        Batch group = null; // Records of the group being read, null outside a group
+        long groupSize = 0;
+        int groupStart = 0;
+        while (data.remaining() >= Integer.BYTES){
+            int start = data.position();
+            int length = data.getInt();
+            if (length <= 0 || data.remaining() < length + Integer.BYTES){
+                data.position(start);
+                break;
+            }
+            check.reset();
+            check.update(data.array(), data.position(), length);
+            if ((int) check.getValue() != data.getInt(data.position() + length)){
+                data.position(start);
+                break;
+            }
+            int op = data.get();
+            String owner = readString(data);
+            String other = readString(data);
+            long amount = data.getLong();
+            data.getInt(); // Checksum
+            if (op == GROUP){
+                group = new Batch();
+                groupSize = amount;
+                groupStart = start;
+            } else if (group != null){
+                group.add(op, owner, other.isEmpty() ? null : other, amount);
+                if (group.size() == groupSize){
+                    for (int i = 0; i < group.size(); i++){
+                        handler.apply(group.op(i), group.owner(i), group.other(i), group.amount(i));
+                    }
+                    records += group.size();
+                    group = null;
+                }
+            } else {
+                handler.apply(op, owner, other.isEmpty() ? null : other, amount);
+                records++;
+            }
+        }
+        if (group != null){
+            data.position(groupStart); // The crash came before the group was complete
+        }
+        if (data.position() < data.limit()){
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(data.position());
+            }
+        }
+        return records;
+    }
+
+    private static String readString(ByteBuffer data) {
+        int length = data.getShort() & 0xFFFF;
+        String text = new String(data.array(), data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return text;
+    }
+}
+
+/**
+ * Destination for the lines printed by the bank system.
+ */
+interface OutputSink {
+    /**
+     * Writes one line of output followed by a line separator.
+     * @param line The text of the line.
+     */
+    void writeLine(CharSequence line);
+
+    /**
+     * Writes the beginning of a line without a line separator, so a very long line can be written in parts
+     * instead of being built in memory as a whole. The line is finished with writeLine(). The caller holds the
+     * lock of the sink, synchronized (sink), from the first part to the end of the line, so lines of other
+     * threads cannot come in between.
+     * @param part The text of the part.
+     */
+    void writePart(CharSequence part);
+
+    /**
+     * Pushes all buffered output to the underlying destination.
+     */
+    void flush();
+}
+
+/**
+ * Output sink that buffers lines in memory and writes them to a stream in large chunks.
+ * Lines written by several threads are never interleaved.
+ */
+class WriterSink implements OutputSink {
+    private final Writer out;
+    private final String newline = System.lineSeparator();
+    private char[] chars = new char[256]; // Reused copy buffer for the line being written
+
+    /**
+     * Creates a buffered sink on top of a stream, using the platform charset like System.out does.
+     * @param stream The stream to write to.
+     */
+    public WriterSink(OutputStream stream) {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream), 1 << 16);
+    }
+
+    @Override
+    public synchronized void writeLine(CharSequence line) {
+        try {
+            write(line);
+            out.write(newline);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void writePart(CharSequence part) {
+        try {
+            write(part);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void write(CharSequence text) throws IOException {
+        int len = text.length();
+        if (text instanceof String){
+            out.write((String) text, 0, len);
+            return;
+        }
+        if (chars.length < len){
+            chars = new char[Math.max(len, chars.length * 2)];
+        }
+        if (text instanceof StringBuilder){
+            ((StringBuilder) text).getChars(0, len, chars, 0);
+        } else if (text instanceof TextSlice){
+            ((TextSlice) text).getChars(chars, 0);
+        } else {
+            text.toString().getChars(0, len, chars, 0);
+        }
+        out.write(chars, 0, len);
+    }
+
+    @Override
+    public synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+/**
+ * Reusable builder for a single line of output. Obtained from Output.line() and printed with println().
+ */
+class OutputLine {
+    private final StringBuilder text = new StringBuilder(256);
+
+    /**
+     * Clears the line so it can be built again.
+     * @return This line.
+     */
+    OutputLine reset() {
+        text.setLength(0);
+        return this;
+    }
+
+    /**
+     * Appends a piece of text.
+     * @param s The text to append.
+     * @return This line.
+     */
+    public OutputLine append(String s) {
+        text.append(s);
+        return this;
+    }
+
+    /**
+     * Appends an amount of money with three decimal places.
+     * @param amount The amount to append.
+     * @return This line.
+     */
+    public OutputLine money(long amount) {
+        Money.append(text, amount);
+        return this;
+    }
+
+    /**
+     * Sends the line to the current output sink.
+     */
+    public void println() {
+        Output.println(text);
+    }
+}
+
+/**
+ * Entry point for all output of the bank system. Lines go to a pluggable sink which is buffered by default,
+ * so the sink has to be flushed when a batch of commands is finished.
+ */
+class Output {
+    private static volatile OutputSink sink = new WriterSink(System.out); // Where the lines end up
+    private static final ThreadLocal<OutputLine> line = ThreadLocal.withInitial(OutputLine::new); // Line builder per thread
+    private static final ThreadLocal<OutputSink> bound = new ThreadLocal<>(); // Sink of the connection a thread serves
+    private static volatile boolean binding; // Set once a thread bound a sink, spares the lookup before that
+    private Output() {}
+
+    /**
+     * Starts a new line of output. The returned builder is reused by the calling thread, so the line has to be
+     * printed before the next one is started.
+     * @return An empty line builder.
+     */
+    public static OutputLine line() {
+        return line.get().reset();
+    }
+
+    /**
+     * Prints a complete line.
+     * @param text The text of the line.
+     */
+    public static void println(CharSequence text) {
+        getSink().writeLine(text);
+    }
+
+    /**
+     * Flushes the current sink.
+     */
+    public static void flush() {
+        getSink().flush();
+    }
+
+    /**
+     * Returns the current sink, the one bound to the calling thread if there is one.
+     * @return The sink in use.
+     */
+    public static OutputSink getSink() {
+        if (binding){
+            OutputSink own = bound.get();
+            if (own != null){
+                return own;
+            }
+        }
+        return sink;
+    }
+
+    /**
+     * Sends the output of the calling thread to its own sink instead of the shared one, e.g. to the client
+     * connection the thread serves.
+     * @param own The sink of the thread, null to go back to the shared sink.
+     */
+    public static void bind(OutputSink own) {
+        if (own == null){
+            bound.remove();
+            return;
+        }
+        binding = true;
+        bound.set(own);
+    }
+
+    /**
+     * Replaces the sink, flushing the previous one first.
+     * @param newSink The sink to use from now on.
+     */
+    public static void setSink(OutputSink newSink) {
+        sink.flush();
+        sink = newSink;
+    }
+}
+
+/**
+ * Arithmetic on amounts of money stored in a long. By default an amount is an exact count of thousandths,
+ * which matches the three decimals of the output; fees are rounded half up to a thousandth and the amount
+ * after the fee is whatever is left of the fund, so no money is lost to rounding.
+ * The opt-in double compatibility mode reproduces the old double arithmetic exactly: the long then holds the
+ * bits of the double value and every operation is done in double like before.
+ */
+class Money {
+    private static final int BASIS_POINTS = 10000; // Fee rates are given in hundredths of a percent
+    private static boolean doubleCompat = false;
+    private Money() {}
+
+    /**
+     * Switches between exact thousandths and double compatibility. Amounts of the two modes cannot be mixed,
+     * so this has to happen before the first amount is created.
+     * @param enabled True to use double arithmetic.
+     */
+    public static void setDoubleCompat(boolean enabled) {
+        doubleCompat = enabled;
+        MoneyFormat.forget(); // The same long means another amount now
+    }
+
+    /**
+     * Tells whether double compatibility mode is on.
+     * @return True if amounts hold double values.
+     */
+    public static boolean isDoubleCompat() {
+        return doubleCompat;
+    }
+
+    /**
+     * Parses an amount given as text.
+     * @param text The amount, e.g. "12.5".
+     * @return The amount.
+     */
+    public static long parse(String text) {
+        if (doubleCompat){
+            return fromDouble(Double.parseDouble(text));
+        }
+        return new BigDecimal(text.trim()).setScale(3, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts a double value to an amount.
+     * @param value The value in dollars.
+     * @return The amount.
+     */
+    public static long fromDouble(double value) {
+        if (doubleCompat){
+            return Double.doubleToRawLongBits(value);
+        }
+        return BigDecimal.valueOf(value).setScale(3, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts a whole number of thousandths to an amount.
+     * @param thousandths The value in thousandths of a dollar.
+     * @return The amount.
+     */
+    public static long ofThousandths(long thousandths) {
+        return doubleCompat ? Double.doubleToRawLongBits(thousandths / 1000.0) : thousandths;
+    }
+
+    /**
+     * Converts an amount to a double value, e.g. for reports.
+     * @param amount The amount.
+     * @return The value in dollars.
+     */
+    public static double toDouble(long amount) {
+        return doubleCompat ? Double.longBitsToDouble(amount) : amount / 1000.0;
+    }
+
+    /**
+     * Adds two amounts.
+     * @param a The first amount.
+     * @param b The second amount.
+     * @return The sum.
+     */
+    public static long add(long a, long b) {
+        if (doubleCompat){
+            return Double.doubleToRawLongBits(Double.longBitsToDouble(a) + Double.longBitsToDouble(b));
+        }
+        return a + b;
+    }
+
+    /**
+     * Compares two amounts.
+     * @param a The first amount.
+     * @param b The second amount.
+     * @return Negative, zero or positive as the first amount is less than, equal to or greater than the second.
+     */
+    public static int compare(long a, long b) {
+        if (doubleCompat){
+            return Double.compare(Double.longBitsToDouble(a), Double.longBitsToDouble(b));
+        }
+        return Long.compare(a, b);
+    }
+
+    /**
+     * Subtracts an amount from another.
+     * @param a The amount to subtract from.
+     * @param b The amount to subtract.
+     * @return The difference.
+     */
+    public static long subtract(long a, long b) {
+        if (doubleCompat){
+            return Double.doubleToRawLongBits(Double.longBitsToDouble(a) - Double.longBitsToDouble(b));
+        }
+        return a - b;
+    }
+
+    /**
+     * Checks that a balance is enough to pay an amount.
+     * @param balance The balance.
+     * @param amount The amount to pay.
+     * @return True if the balance is at least the amount.
+     */
+    public static boolean covers(long balance, long amount) {
+        if (doubleCompat){
+            return Double.longBitsToDouble(balance) >= Double.longBitsToDouble(amount);
+        }
+        return balance >= amount;
+    }
+
+    /**
+     * Computes the fee charged on a fund.
+     * @param fund The amount the fee is charged on.
+     * @param rate The fee rate in basis points.
+     * @return The fee, rounded half up to a thousandth.
+     */
+    public static long fee(long fund, int rate) {
+        if (doubleCompat){
+            return Double.doubleToRawLongBits(Double.longBitsToDouble(fund) * rate(rate));
+        }
+        // Split the fund so fund * rate cannot overflow, only the remainder needs rounding
+        long whole = fund / BASIS_POINTS;
+        long rest = fund % BASIS_POINTS;
+        return whole * rate + Math.floorDiv(rest * rate + BASIS_POINTS / 2, BASIS_POINTS);
+    }
+
+    /**
+     * Computes what is left of a fund after the fee.
+     * @param fund The amount the fee is charged on.
+     * @param rate The fee rate in basis points.
+     * @return The fund minus the fee.
+     */
+    public static long net(long fund, int rate) {
+        if (doubleCompat){
+            return Double.doubleToRawLongBits(Double.longBitsToDouble(fund) * (1 - rate(rate)));
+        }
+        return fund - fee(fund, rate);
+    }
+
+    /**
+     * Appends an amount with three decimal places.
+     * @param sb The buffer to append to.
+     * @param amount The amount.
+     * @return The same buffer.
+     */
+    public static StringBuilder append(StringBuilder sb, long amount) {
+        String cached = MoneyFormat.cached(amount);
+        if (cached != null){
+            return sb.append(cached);
+        }
+        int start = sb.length();
+        if (doubleCompat){
+            MoneyFormat.append(sb, Double.longBitsToDouble(amount));
+        } else {
+            if (amount < 0){
+                sb.append('-');
+            }
+            MoneyFormat.appendThousandths(sb, Math.abs(amount));
+        }
+        MoneyFormat.remember(amount, sb, start);
+        return sb;
+    }
+
+    /**
+     * Formats an amount with three decimal places.
+     * @param amount The amount.
+     * @return The formatted amount.
+     */
+    public static String format(long amount) {
+        return append(new StringBuilder(16), amount).toString();
+    }
+
+    private static double rate(int basisPoints) {
+        return basisPoints / (double) BASIS_POINTS; // Same double as the literal, e.g. 0.015 for 150
+    }
+}
+
+/**
+ * Formats amounts of money with exactly three decimal places, giving the same text as
+ * String.format("%.3f", n) in the root locale, but without allocating on the common path and whatever the
+ * default locale is.
+ * Also keeps the text of the first amounts formatted in a small cache, so amounts that come up again and again,
+ * like common deposits and fees, are copied instead of formatted.
+ */
+class MoneyFormat {
+    // Largest amount handled by the fast path, small enough for n * 1000 to stay exact to well below 0.001
+    private static final double FAST_LIMIT = 1e9;
+    // Distance from a rounding tie below which the result is left to the exact slow path
+    private static final double TIE_MARGIN = 1e-3;
+    private static final int CACHE_SLOTS = 1 << 12; // Cached amounts, a power of two
+    private static final Cached[] cache = new Cached[CACHE_SLOTS]; // By hash of the amount, first come first served
+    private MoneyFormat() {}
+
+    /**
+     * Returns the cached text of an amount.
+     * @param amount The amount, see Money for the representation.
+     * @return The text, null if the amount is not cached.
+     */
+    static String cached(long amount) {
+        Cached entry = cache[slot(amount)];
+        return entry != null && entry.amount == amount ? entry.text : null;
+    }
+
+    /**
+     * Caches the text of an amount that was just formatted, unless its slot is taken. Slots are never replaced,
+     * so once the cache is full nothing is allocated any more.
+     * @param amount The amount.
+     * @param sb The buffer the amount was formatted into.
+     * @param start The position of the text in the buffer.
+     */
+    static void remember(long amount, StringBuilder sb, int start) {
+        int slot = slot(amount);
+        if (cache[slot] == null){
+            cache[slot] = new Cached(amount, sb.substring(start)); // Final fields, safe to share without locking
+        }
+    }
+
+    /**
+     * Empties the cache, e.g. when the representation of amounts changes.
+     */
+    static void forget() {
+        Arrays.fill(cache, null);
+    }
+
+    private static int slot(long amount) {
+        return (int) ((amount ^ (amount >>> 32)) * 0x9E3779B97F4A7C15L >>> 52); // Top 12 bits of a mixing product
+    }
+
+    /**
+     * Appends a formatted amount to a buffer.
+     * @param sb The buffer to append to.
+     * @param n The amount to format.
+     * @return The same buffer.
+     */
+    public static StringBuilder append(StringBuilder sb, double n) {
+        // The sign bit check also sends -0.0 to the slow path, NaN fails the range check
+        if (Double.doubleToRawLongBits(n) >= 0 && n < FAST_LIMIT){
+            double scaled = n * 1000;
+            long whole = (long) scaled;
+            double frac = scaled - whole;
+            if (Math.abs(frac - 0.5) > TIE_MARGIN){ // Too close to a tie to be sure about the rounding
+                return appendThousandths(sb, frac > 0.5 ? whole + 1 : whole);
+            }
+        }
+        if (Double.isNaN(n) || Double.isInfinite(n)){
+            return sb.append(n);
+        }
+        if (Double.doubleToRawLongBits(n) < 0){ // Negative values and -0.0 keep their sign even when they round to 0
+            sb.append('-');
+            n = -n;
+        }
+        // Like the formatter: the shortest decimal that reads back as n, rounded half up
+        return sb.append(BigDecimal.valueOf(n).setScale(3, RoundingMode.HALF_UP).toPlainString());
+    }
+
+    /**
+     * Formats an amount as a string.
+     * @param n The amount to format.
+     * @return The amount with three decimal places.
+     */
+    public static String format(double n) {
+        return append(new StringBuilder(16), n).toString();
+    }
+
+    /**
+     * Appends a non-negative number of thousandths as a decimal with three places.
+     * @param sb The buffer to append to.
+     * @param units The amount in thousandths.
+     * @return The same buffer.
+     */
+    static StringBuilder appendThousandths(StringBuilder sb, long units) {
+        long rest = units % 1000;
+        sb.append(units / 1000).append('.');
+        if (rest < 100){
+            sb.append('0');
+        }
+        if (rest < 10){
+            sb.append('0');
+        }
+        return sb.append(rest);
+    }
+
+    /**
+     * An amount with its text.
+     */
+    private static final class Cached {
+        final long amount;
+        final String text;
+
+        Cached(long amount, String text) {
+            this.amount = amount;
+            this.text = text;
+        }
+    }
+}
+
+/**
+ Interface for fee strategies used in different account types. Used for Strategy pattern for fee.
+ The fee of a fund is found in two steps: tier() picks the rule that applies and the other methods use it,
+ so the rule is looked up once per transaction.
+ */
+interface FeeStrategies {
+    /**
+     * Picks the rule that applies to a fund.
+     * @param fund The amount the fee is charged on.
+     * @return The number of the rule.
+     */
+    int tier(long fund);
+
+    /**
+     * Computes the fee charged on a fund.
+     * @param fund The amount the fee is charged on.
+     * @param tier The rule returned by tier().
+     * @return The fee.
+     */
+    long fee(long fund, int tier);
+
+    /**
+     * Computes what is left of a fund after the fee.
+     * @param fund The amount the fee is charged on.
+     * @param tier The rule returned by tier().
+     * @return The fund minus the fee.
+     */
+    long net(long fund, int tier);
+
+    /**
+     * Returns the text describing the fee in the messages, e.g. " (1.5%) in the system.".
+     * @param fund The amount the fee is charged on.
+     * @param tier The rule returned by tier().
+     * @return The description.
+     */
+    String label(long fund, int tier);
+}
+
+/**
+ * Fee schedule given as data: a rate in basis points per tier of the fund, optionally capped at a maximum fee.
+ * Tiers start at ascending amounts, the first one at zero. The descriptions are built once when the schedule
+ * is created. This is the only implementation of FeeStrategies, so calls through the interface stay monomorphic.
+ */
+final class FeeSchedule implements FeeStrategies {
+    private final long[] from; // Smallest fund of each tier
+    private final int[] rates; // Rate of each tier in basis points
+    private final long cap; // Largest fee, -1 for none
+    private final String[] labels; // Description of each tier
+    private final String capLabel; // Description of a capped fee
+
+    /**
+     * Creates a schedule.
+     * @param from The smallest fund of each tier, ascending and starting at zero.
+     * @param rates The rate of each tier in basis points.
+     * @param cap The largest fee, -1 for none.
+     */
+    FeeSchedule(long[] from, int[] rates, long cap) {
+        if (from.length == 0 || from.length != rates.length || from[0] != 0){
+            throw new IllegalArgumentException("A fee schedule needs one rate per tier and a first tier at 0");
+        }
+        this.from = from.clone();
+        this.rates = rates.clone();
+        this.cap = cap;
+        this.labels = new String[rates.length];
+        for (int i = 0; i < rates.length; i++){
+            if (rates[i] < 0){
+                throw new IllegalArgumentException("Negative fee rate " + rates[i]);
+            }
+            if (i > 0 && Money.covers(from[i - 1], from[i])){
+                throw new IllegalArgumentException("Fee tiers have to start at ascending amounts");
+            }
+            labels[i] = " (" + percent(rates[i]) + "%) in the system.";
+        }
+        this.capLabel = cap < 0 ? null : " (capped at $" + Money.format(cap) + ") in the system.";
+    }
+
+    /**
+     * Creates a schedule with a single rate for every fund and no cap.
+     * @param rate The rate in basis points.
+     * @return The schedule.
+     */
+    static FeeSchedule flat(int rate) {
+        return new FeeSchedule(new long[]{0}, new int[]{rate}, -1);
+    }
+
+    @Override
+    public int tier(long fund) {
+        int tier = 0;
+        while (tier + 1 < from.length && Money.covers(fund, from[tier + 1])){
+            tier++;
+        }
+        return tier;
+    }
+
+    @Override
+    public long fee(long fund, int tier) {
+        long fee = Money.fee(fund, rates[tier]);
+        return capped(fee) ? cap : fee;
+    }
+
+    @Override
+    public long net(long fund, int tier) {
+        if (capped(Money.fee(fund, rates[tier]))){
+            return Money.subtract(fund, cap);
+        }
+        return Money.net(fund, rates[tier]); // Not fund - fee, the double arithmetic rounds differently
+    }
+
+    @Override
+    public String label(long fund, int tier) {
+        return capped(Money.fee(fund, rates[tier])) ? capLabel : labels[tier];
+    }
+
+    private boolean capped(long fee) {
+        return cap >= 0 && fee != cap && Money.covers(fee, cap);
+    }
+
+    /**
+     * Writes a rate with at least one decimal, e.g. "1.5" for 150 and "2.0" for 200 basis points.
+     * @param rate The rate in basis points.
+     * @return The rate in percent.
+     */
+    private static String percent(int rate) {
+        int cents = rate % 100;
+        String decimals = cents % 10 == 0 ? String.valueOf(cents / 10) : (cents < 10 ? "0" : "") + cents;
+        return rate / 100 + "." + decimals;
+    }
+}
+
+/**
+ * A product type of account: its name, the id mapped records store it by and its fee schedule.
+ * The types are data: Savings, Checking and Business are built in, more can be defined in a fee table
+ * loaded at startup. Accounts keep a reference to their type, so no lookup happens per transaction.
+ */
+final class AccountType {
+    static final int MAX_TYPES = 128; // Mapped records keep the id in one byte
+    private static volatile AccountType[] types = {
+            new AccountType(0, "Savings", FeeSchedule.flat(150)),
+            new AccountType(1, "Checking", FeeSchedule.flat(200)),
+            new AccountType(2, "Business", FeeSchedule.flat(250))
+    }; // Index is the type id, replaced as a whole when a type is defined
+
+    final int id;
+    final String name;
+    final FeeStrategies fees;
+    final String createdLabel; // "A new <name> account created for ", the start of the creation message
+    final String viewLabel; // "'s Account: Type: <name>, Balance: $", from the owner to the balance of a View
+
+    private AccountType(int id, String name, FeeStrategies fees) {
+        this.id = id;
+        this.name = name;
+        this.fees = fees;
+        this.createdLabel = "A new " + name + " account created for ";
+        this.viewLabel = "'s Account: Type: " + name + ", Balance: $";
+    }
+
+    /**
+     * Looks up a type by name.
+     * @param name The type name, e.g. "Savings".
+     * @return The type, null for an unknown name.
+     */
+    static AccountType of(String name) {
+        for (AccountType type : types){
+            if (type.name.equals(name)){
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a type by id.
+     * @param id The type id.
+     * @return The type, null for an unknown id.
+     */
+    static AccountType of(int id) {
+        AccountType[] all = types;
+        return id >= 0 && id < all.length ? all[id] : null;
+    }
+
+    /**
+     * Defines a type or replaces the fee schedule of an existing one, which keeps its id. New types get the
+     * next free id, so a table has to keep its order for the ids in a mapped store to stay valid.
+     * Has to be called before any account is created.
+     * @param name The type name.
+     * @param fees The fee schedule.
+     * @return The type.
+     */
+    static synchronized AccountType define(String name, FeeStrategies fees) {
+        AccountType[] all = types;
+        AccountType old = of(name);
+        int id = old != null ? old.id : all.length;
+        if (id >= MAX_TYPES){
+            throw new IllegalArgumentException("Too many account types, at most " + MAX_TYPES);
+        }
+        AccountType[] next = Arrays.copyOf(all, Math.max(all.length, id + 1));
+        next[id] = new AccountType(id, name, fees);
+        types = next;
+        return next[id];
+    }
+
+    /**
+     * Loads a fee table. Each line defines one type as "Name FROM:RATE% [FROM:RATE% ...] [cap=AMOUNT]", for
+     * example "Premium 0:2% 1000:1.25% cap=40". Empty lines and lines starting with # are skipped.
+     * @param path The table file.
+     * @throws IOException If the file cannot be read or a line is malformed.
+     */
+    static void load(Path path) throws IOException {
+        int number = 0;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)){
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")){
+                continue;
+            }
+            String[] words = line.split("\\s+");
+            try {
+                long[] from = new long[words.length - 1];
+                int[] rates = new int[words.length - 1];
+                int tiers = 0;
+                long cap = -1;
+                for (int w = 1; w < words.length; w++){
+                    if (words[w].startsWith("cap=")){
+                        cap = Money.parse(words[w].substring(4));
+                    } else {
+                        int colon = words[w].indexOf(':');
+                        if (colon < 0 || !words[w].endsWith("%")){
+                            throw new IllegalArgumentException("expected FROM:RATE% but got " + words[w]);
+                        }
+                        from[tiers] = Money.parse(words[w].substring(0, colon));
+                        rates[tiers++] = new BigDecimal(words[w].substring(colon + 1, words[w].length() - 1))
+                                .movePointRight(2).intValueExact();
+                    }
+                }
+                define(words[0], new FeeSchedule(Arrays.copyOf(from, tiers), Arrays.copyOf(rates, tiers), cap));
+            } catch (RuntimeException e) {
+                throw new IOException(path + ":" + number + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
+
+/**
+ * Transaction history of an account kept as a kind code and an amount per entry in two primitive arrays,
+ * about 9 bytes per entry. The text of an entry, e.g. "Deposit $12.000", is only built when it is needed.
+ * Entries are added with the account locked but read without it, e.g. by View and exports: an entry is
+ * written before the size is raised past it, and readers read the size before the arrays, so every entry
+ * below the size they read is complete. Entries never change once added.
+ */
+class TransactionJournal {
+    public static final byte INITIAL_DEPOSIT = 0;
+    public static final byte DEPOSIT = 1;
+    public static final byte TRANSFER = 2;
+    public static final byte WITHDRAWAL = 3;
+    private static final String[] LABELS = {"Initial Deposit $", "Deposit $", "Transfer $", "Withdrawal $"};
+    static final int CHUNK_ENTRIES = 256; // Entries per cached piece of rendered history
+    private static final int PART_CHARS = 8192; // Characters collected before they are written out
+
+    private volatile Entries entries = new Entries(new byte[4], new long[4]); // Replaced as a whole when grown
+    private volatile int size;
+    private static final int CACHE_CHARS = 1 << 21; // Characters of rendered chunks kept for all journals together
+    private static final LinkedHashMap<ChunkKey, String> RENDERED = new LinkedHashMap<>(64, 0.75f, true); // LRU
+    private static long renderedChars; // Characters in RENDERED
+
+    /**
+     * Appends an entry.
+     * @param kind The kind of transaction, one of the constants of this class.
+     * @param amount The amount of the transaction.
+     */
+    public void add(byte kind, long amount) {
+        Entries at = entries;
+        int count = size;
+        if (count == at.kinds.length){
+            int capacity = count + (count >> 1); // Grow by half, like ArrayList
+            at = new Entries(Arrays.copyOf(at.kinds, capacity), Arrays.copyOf(at.amounts, capacity));
+            entries = at;
+        }
+        at.kinds[count] = kind;
+        at.amounts[count] = amount;
+        size = count + 1; // Publishes the entry
+    }
+
+    /**
+     * Returns the number of entries.
+     * @return The number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the kind of an entry.
+     * @param i The index of the entry.
+     * @return One of the kind constants.
+     */
+    public byte kind(int i) {
+        Objects.checkIndex(i, size);
+        return entries.kinds[i];
+    }
+
+    /**
+     * Returns the amount of an entry.
+     * @param i The index of the entry.
+     * @return The amount.
+     */
+    public long amount(int i) {
+        Objects.checkIndex(i, size);
+        return entries.amounts[i];
+    }
+
+    /**
+     * Appends the description of an entry to a buffer.
+     * @param sb The buffer.
+     * @param i The index of the entry.
+     * @return The same buffer.
+     */
+    public StringBuilder appendTo(StringBuilder sb, int i) {
+        return Money.append(sb.append(LABELS[kind(i)]), amount(i));
+    }
+
+    /**
+     * Writes the descriptions of a range of entries, separated by ", ", to a sink in parts of bounded size,
+     * as part of a line. The history only grows, so the text of a complete chunk of entries is cached once it
+     * was written, in a cache shared by all journals that drops the least recently used chunks beyond a few
+     * megabytes; repeated Views of histories that fit only format the entries they have not written before. The account does not
+     * have to be locked, entries below its size never change; the caller has to hold the lock of the sink.
+     * @param sink The sink.
+     * @param from The index of the first entry.
+     * @param to The index after the last entry.
+     */
+    public void writeTo(OutputSink sink, int from, int to) {
+        Objects.checkFromToIndex(from, to, size());
+        StringBuilder part = new StringBuilder(Math.min(PART_CHARS, 32 * (to - from)) + 16);
+        int i = from;
+        while (i < to){
+            if (i > from){
+                part.append(", ");
+            }
+            if (i % CHUNK_ENTRIES == 0 && i + CHUNK_ENTRIES <= to){ // A whole chunk, written from the cache
+                if (part.length() > 0){
+                    sink.writePart(part);
+                    part.setLength(0);
+                }
+                sink.writePart(chunk(i / CHUNK_ENTRIES));
+                i += CHUNK_ENTRIES;
+            } else {
+                appendTo(part, i++);
+                if (part.length() >= PART_CHARS){
+                    sink.writePart(part);
+                    part.setLength(0);
+                }
+            }
+        }
+        if (part.length() > 0){
+            sink.writePart(part);
+        }
+    }
+
+    private String chunk(int c) { // Views of one account may run at the same time, both may render a chunk
+        ChunkKey key = new ChunkKey(this, c);
+        String text;
+        synchronized (RENDERED){
+            text = RENDERED.get(key);
+        }
+        if (text == null){
+            int first = c * CHUNK_ENTRIES;
+            StringBuilder sb = new StringBuilder(CHUNK_ENTRIES * 24);
+            for (int i = first; i < first + CHUNK_ENTRIES; i++){
+                if (i > first){
+                    sb.append(", ");
+                }
+                appendTo(sb, i);
+            }
+            text = sb.toString();
+            synchronized (RENDERED){
+                String old = RENDERED.put(key, text);
+                renderedChars += text.length() - (old == null ? 0 : old.length());
+                Iterator<String> eldest = RENDERED.values().iterator();
+                while (renderedChars > CACHE_CHARS && eldest.hasNext()){
+                    renderedChars -= eldest.next().length();
+                    eldest.remove();
+                }
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Renders all entries as text.
+     * @return The descriptions in order.
+     */
+    public ArrayList<String> render() {
+        int count = size();
+        ArrayList<String> list = new ArrayList<>(count);
+        StringBuilder sb = new StringBuilder(32);
+        for (int i = 0; i < count; i++){
+            sb.setLength(0);
+            list.add(appendTo(sb, i).toString());
+        }
+        return list;
+    }
+
+    /**
+     * Builds a journal from descriptions like "Deposit $12.000".
+     * @param descriptions The descriptions.
+     * @return The journal.
+     */
+    public static TransactionJournal parse(List<String> descriptions) {
+        TransactionJournal journal = new TransactionJournal();
+        for (String text : descriptions){
+            int split = text.lastIndexOf('$') + 1;
+            byte kind = -1;
+            for (byte k = 0; k < LABELS.length; k++){
+                if (LABELS[k].length() == split && text.startsWith(LABELS[k])){
+                    kind = k;
+                }
+            }
+            if (kind < 0){
+                throw new IllegalArgumentException("Unknown transaction: " + text);
+            }
+            journal.add(kind, Money.parse(text.substring(split)));
+        }
+        return journal;
+    }
+
+    /**
+     * A chunk of a journal in the cache of rendered chunks.
+     */
+    private static final class ChunkKey {
+        final TransactionJournal journal;
+        final int chunk;
+
+        ChunkKey(TransactionJournal journal, int chunk) {
+            this.journal = journal;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ChunkKey && ((ChunkKey) o).journal == journal && ((ChunkKey) o).chunk == chunk;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(journal) * 31 + chunk;
+        }
+    }
+
+    /**
+     * The arrays of the entries, replaced by larger copies as the history grows.
+     */
+    private static final class Entries {
+        final byte[] kinds;
+        final long[] amounts; // See Money for the representation
+
+        Entries(byte[] kinds, long[] amounts) {
+            this.kinds = kinds;
+            this.amounts = amounts;
+        }
+    }
+}
+
+/**
+ * Transaction history of an account kept in the journal file of a mapped store. Entries are stored in
+ * chains of fixed-size blocks; reading them in order, as View does, follows the chain block by block.
+ * Views read without holding the account lock, so several threads may read at once: the position in the
+ * chain is kept as one immutable value that each reader replaces as a whole.
+ */
+class MappedJournal extends TransactionJournal {
+    private final MappedAccountStore store;
+    private final int slot;
+    private Cursor cursor; // Block last read, null when not positioned
+
+    /**
+     * Creates the journal view of a record.
+     * @param store The store.
+     * @param slot The number of the account record.
+     */
+    MappedJournal(MappedAccountStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    @Override
+    public void add(byte kind, long amount) {
+        store.journalAdd(slot, kind, amount);
+    }
+
+    @Override
+    public int size() {
+        return store.journalSize(slot);
+    }
+
+    @Override
+    public byte kind(int i) {
+        Cursor at = locate(i);
+        return store.blockKind(at.block, i - at.first);
+    }
+
+    @Override
+    public long amount(int i) {
+        Cursor at = locate(i);
+        return store.blockAmount(at.block, i - at.first);
+    }
+
+    private Cursor locate(int i) {
+        Objects.checkIndex(i, size());
+        Cursor at = cursor;
+        if (at != null && i >= at.first && i < at.first + MappedAccountStore.BLOCK_ENTRIES){
+            return at;
+        }
+        int block;
+        int first;
+        if (at == null || i < at.first){ // Start over from the head of the chain
+            block = store.journalHead(slot);
+            first = 0;
+        } else {
+            block = at.block;
+            first = at.first;
+        }
+        while (i >= first + MappedAccountStore.BLOCK_ENTRIES){
+            block = store.nextBlock(block);
+            first += MappedAccountStore.BLOCK_ENTRIES;
+        }
+        at = new Cursor(block, first);
+        cursor = at;
+        return at;
+    }
+
+    /**
+     * A block of the chain with the index of its first entry.
+     */
+    private static final class Cursor {
+        final int block;
+        final int first;
+
+        Cursor(int block, int first) {
+            this.block = block;
+            this.first = first;
+        }
+    }
+}
+
+/**
+ * Credits received by a hot account, one of the few that most transfers go to, kept apart from its balance
+ * in striped cells so concurrent transfers to it neither lock it nor contend on one memory word. The owner
+ * folds them into the balance, under its lock, before anything reads the balance.
+ */
+class CreditAccumulator {
+    private static final int STRIPES = 8;
+    private static final int PAD = 8; // Longs per stripe, so two stripes never share a cache line
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
 
     /**
-     * Displays details of an account.
-     * @param owner The owner of the account whose details are to be displayed.
+     * Adds a credit. Only exact amounts are accumulated, their sum does not depend on the order.
+     * @param amount The amount.
      */
-    public static void View(String owner){
-        Account own = getAccount(owner);
-        if (own == null){
-            System.out.println("Error: Account " + owner + " does not exist.");
-        } else {
-            own.makeView(); // Show account details
-        }
+    public void add(long amount) {
+        int cell = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+        cells.getAndAdd(cell, amount);
+        cells.getAndIncrement(cell + 1); // Same cache line, counts the credits for cooling
     }
 
     /**
-     * Retrieves an account by the owner's name.
-     * @param owner The owner's name.
-     * @return The account if found, null otherwise.
+     * Takes out all credits added so far. A credit added meanwhile is either taken or stays for the next call.
+     * @return The sum of the credits taken.
      */
-    public static Account getAccount(String owner){
-        for (Account account: accounts){
-            if (account.owner.equals(owner)){
-                return account;
-            }
+    public long drain() {
+        long sum = 0;
+        for (int s = 0; s < STRIPES; s++){
+            sum += cells.getAndSet(s * PAD, 0);
         }
-        return null;
+        return sum;
     }
 
     /**
-     * Formats a number to a string with three decimal places.
-     * @param n The number to format.
-     * @return The formatted string.
+     * Takes out the number of credits added since the last call.
+     * @return The number of credits.
      */
-    public static String format(double n){
-        return String.format("%.3f",n).replace(",", ".");
+    public long drainCount() {
+        long count = 0;
+        for (int s = 0; s < STRIPES; s++){
+            count += cells.getAndSet(s * PAD + 1, 0);
+        }
+        return count;
     }
 }
 
 /**
- Interface for fee strategies used in different account types. Used for Strategy pattern for fee.
- */
-interface FeeStrategies {
-    void makeTransfer(double fund, Account getter);
-    void makeWithdraw(double fund);
-}
-
-/**
- * Base class for all account types, encapsulating common properties and operations of bank accounts.
+ * A bank account, encapsulating the properties and operations common to all types. What differs between
+ * types, the fees, comes from the AccountType of the account.
  */
 class Account{
+    private static final VarHandle CONTENDED; // Atomic access to contended
+    static {
+        try {
+            CONTENDED = MethodHandles.lookup().findVarHandle(Account.class, "contended", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     String owner;
-    private final double initial_deposit;
+    private final AccountType type; // Product type with the fee schedule
+    private final long initial_deposit;
     private boolean active;
-    private double deposit;
-    protected ArrayList<String> transactions;
+    private long deposit; // Current balance, see Money for the representation
+    protected TransactionJournal transactions;
+    private final MappedAccountStore store; // Holds the state instead of the fields above, null on the heap
+    private final int slot; // Record of this account in the store
+    private volatile Version undo; // State replaced by the latest change while snapshots are open, newest first
+    long created; // Epoch of the change that created the account, 0 if it was restored
+    int id = -1; // Dense number given by the registry, -1 until the account is registered
+    AccountIndex.Entry indexed; // Balance and state as last put in the indexes, null until indexed
+    volatile CreditAccumulator credits; // Credits not yet in the balance, null unless the account is hot
+    private volatile long contended; // Window in the high half, transfers in it that found the account locked below
 
     /**
      * Constructor to initialize an account with an owner and an initial deposit.
@@ -231,14 +6855,35 @@ class Account{
      *
      * @param owner           The name of the account owner.
      * @param initial_deposit The initial amount deposited into the account.
+     * @param type            The type of the account.
      */
-    public Account(String owner, double initial_deposit) {
+    public Account(String owner, long initial_deposit, AccountType type) {
         this.owner = owner;
+        this.type = type;
         this.initial_deposit = initial_deposit;
         this.active = true;
         this.deposit = initial_deposit;
-        this.transactions = new ArrayList<>();
-        this.transactions.add("Initial Deposit $" + format(initial_deposit));
+        this.transactions = new TransactionJournal();
+        this.transactions.add(TransactionJournal.INITIAL_DEPOSIT, initial_deposit);
+        this.store = null;
+        this.slot = -1;
+    }
+
+    /**
+     * Constructor for a view of an account whose balance, state and history are kept in a mapped store.
+     *
+     * @param owner The name of the account owner.
+     * @param type  The type of the account.
+     * @param store The store with the record of the account.
+     * @param slot  The number of the record.
+     */
+    Account(String owner, AccountType type, MappedAccountStore store, int slot) {
+        this.owner = owner;
+        this.type = type;
+        this.initial_deposit = 0; // Read from the store
+        this.store = store;
+        this.slot = slot;
+        this.transactions = new MappedJournal(store, slot);
     }
 
     /**
@@ -246,391 +6891,477 @@ class Account{
      *
      * @param fund The amount to be deposited.
      */
-    public void makeDeposit(double fund){
-        deposit += fund;
-        this.transactions.add("Deposit $" + format(fund));
+    public void makeDeposit(long fund){
+        applyDeposit(fund);
         // Feedback to user about successful deposit
-        System.out.println(this.getOwner() + " successfully deposited $" + format(fund) + ". New Balance: $" + format(this.getDeposit()) + ".");
+        Output.line().append(this.getOwner()).append(" successfully deposited $").money(fund).append(". New Balance: $").money(this.getDeposit()).append(".").println();
     }
 
     /**
-     * Placeholder for transfer method, intended to be overridden in subclasses to implement account transfers.
+     * Transfers money to another account with the transaction fee of the type deducted from what arrives.
+     * Ensures that the account is active and has sufficient funds before proceeding with the transfer.
      *
-     * @param fund   The amount to be transferred.
-     * @param getter The account to which the funds are transferred.
+     * @param fund   The amount of money to transfer.
+     * @param getter The recipient account.
+     * @return True if the transfer was made.
      */
-    public void makeTransfer(double fund, Account getter){}
+    public boolean makeTransfer(long fund, Account getter){
+        return makeTransfer(fund, getter, false);
+    }
 
     /**
-     * Placeholder for withdrawal method, intended to be overridden in subclasses to implement withdrawals.
+     * Transfers money to another account, optionally adding the amount that arrives to the credits of the
+     * recipient instead of its balance, so the recipient need not be locked.
      *
-     * @param fund The amount to be withdrawn.
+     * @param fund        The amount of money to transfer.
+     * @param getter      The recipient account.
+     * @param deferCredit True to credit the recipient through its CreditAccumulator.
+     * @return True if the transfer was made.
      */
-    public void makeWithdraw(double fund){}
+    boolean makeTransfer(long fund, Account getter, boolean deferCredit){
+        if (this.getState()){ // Check if the account is active
+            if (Money.covers(this.getDeposit(), fund)){ // Check for sufficient funds
+                FeeStrategies fees = type.fees;
+                int tier = fees.tier(fund);
+                long sum_without_fee = fees.net(fund, tier); // Amount after fee deduction
+                applyTransfer(fund, sum_without_fee, getter, deferCredit);
+                // Feedback to user about successful transfer and fee deduction
+                long fee = fees.fee(fund, tier);
+                Output.line().append(this.owner).append(" successfully transferred $").money(sum_without_fee).append(" to ").append(getter.owner).append(". New Balance: $").money(this.getDeposit()).append(". Transaction Fee: $").money(fee).append(fees.label(fund, tier)).println();
+                BankSystem.getFeeLedger().credit(type, fee);
+                Metrics.fee(fee);
+                return true;
+            } else {
+                Output.line().append("Error: Insufficient funds for ").append(owner).append(".").println();
+                Metrics.fail(CommandReader.TRANSFER, BatchResult.INSUFFICIENT);
+            }
+        } else {
+            Output.line().append("Error: Account ").append(this.getOwner()).append(" is inactive.").println();
+            Metrics.fail(CommandReader.TRANSFER, BatchResult.INACTIVE);
+        }
+        return false;
+    }
 
     /**
-     * Placeholder for view method, intended to be overridden in subclasses to display account details.
+     * Withdraws money with the transaction fee of the type deducted from what is paid out.
+     * Ensures that the account is active and has sufficient funds before allowing withdrawal.
+     *
+     * @param fund The amount to withdraw.
+     * @return True if the withdrawal was made.
      */
-    public void makeView(){}
+    public boolean makeWithdraw(long fund){
+        if (this.getState()){ // Check if the account is active
+            if (Money.covers(this.getDeposit(), fund)){ // Check for sufficient funds
+                FeeStrategies fees = type.fees;
+                int tier = fees.tier(fund);
+                applyWithdraw(fund);
+                // Feedback to user about successful withdrawal and fee deduction
+                long fee = fees.fee(fund, tier);
+                Output.line().append(this.owner).append(" successfully withdrew $").money(fees.net(fund, tier)).append(". New Balance: $").money(this.getDeposit()).append(". Transaction Fee: $").money(fee).append(fees.label(fund, tier)).println();
+                BankSystem.getFeeLedger().credit(type, fee);
+                Metrics.fee(fee);
+                return true;
+            } else {
+                Output.line().append("Error: Insufficient funds for ").append(owner).append(".").println();
+                Metrics.fail(CommandReader.WITHDRAW, BatchResult.INSUFFICIENT);
+            }
+        } else {
+            Output.line().append("Error: Account ").append(owner).append(" is inactive.").println();
+            Metrics.fail(CommandReader.WITHDRAW, BatchResult.INACTIVE);
+        }
+        return false;
+    }
 
     /**
-     * Returns the name of the account owner.
+     * Books a deposit without any checks or feedback.
      *
-     * @return The owner of the account.
+     * @param fund The amount deposited.
      */
-    public String getOwner() {
-        return owner;
+    void applyDeposit(long fund){
+        this.setDeposit(Money.add(this.getDeposit(), fund));
+        this.transactions.add(TransactionJournal.DEPOSIT, fund);
     }
 
     /**
-     * Returns the current activation state of the account.
+     * Books a transfer without any checks or feedback.
      *
-     * @return True if the account is active, false otherwise.
+     * @param fund   The amount taken from this account.
+     * @param net    The amount arriving at the recipient, after the fee.
+     * @param getter The recipient account.
      */
-    public boolean getState() {
-        return active;
+    void applyTransfer(long fund, long net, Account getter){
+        applyTransfer(fund, net, getter, false);
     }
 
     /**
-     * Sets the activation state of the account and provides feedback about the state change.
+     * Books a transfer without any checks or feedback, optionally crediting the recipient lazily.
      *
-     * @param state The new activation state of the account.
+     * @param fund        The amount taken from this account.
+     * @param net         The amount arriving at the recipient, after the fee.
+     * @param getter      The recipient account.
+     * @param deferCredit True to add the net amount to the credits of the recipient instead of its balance.
      */
-    public void setState(boolean state) {
-        this.active = state;
-        // Feedback to user about state change
-        if (state){
-            System.out.println(this.getOwner() + "'s account is now activated.");
+    void applyTransfer(long fund, long net, Account getter, boolean deferCredit){
+        this.setDeposit(Money.subtract(this.getDeposit(), fund));
+        if (deferCredit){
+            getter.credits.add(net);
         } else {
-            System.out.println(this.getOwner() + "'s account is now deactivated.");
+            getter.setDeposit(Money.add(getter.getDeposit(), net));
         }
+        this.transactions.add(TransactionJournal.TRANSFER, fund);
     }
 
     /**
-     * Returns the current deposit balance of the account.
+     * Counts a transfer that found the account locked. The count starts over in every window, so only a burst
+     * of contention counts, not contention spread over the lifetime of the account. Safe to call from any
+     * thread without the lock.
      *
-     * @return The current balance.
+     * @param window The number of the current time window.
+     * @return The number of such transfers in the window including this one.
      */
-    public double getDeposit() {
-        return deposit;
+    int contend(long window){
+        window &= 0x7FFFFFFFL;
+        long seen;
+        long next;
+        do {
+            seen = contended;
+            next = seen >>> 32 == window ? seen + 1 : window << 32 | 1;
+        } while (!CONTENDED.compareAndSet(this, seen, next));
+        return (int) next;
     }
 
     /**
-     * Sets the current deposit balance.
+     * Folds the credits received while the account is hot into the balance. The account has to be locked.
      *
-     * @param deposit The new deposit amount.
+     * @return True if the balance changed.
      */
-    public void setDeposit(double deposit) {
-        this.deposit = deposit;
+    boolean settle(){
+        CreditAccumulator pending = credits;
+        if (pending == null){
+            return false;
+        }
+        long sum = pending.drain();
+        if (sum == 0){
+            return false;
+        }
+        this.setDeposit(Money.add(this.getDeposit(), sum));
+        return true;
     }
 
     /**
-     * Returns the initial deposit amount.
+     * Books a withdrawal without any checks or feedback.
      *
-     * @return The amount of the initial deposit.
+     * @param fund The amount taken from this account.
      */
-    public double getInitial_deposit() {
-        return initial_deposit;
+    void applyWithdraw(long fund){
+        this.setDeposit(Money.subtract(this.getDeposit(), fund));
+        this.transactions.add(TransactionJournal.WITHDRAWAL, fund);
     }
 
     /**
-     * Returns the list of all transactions associated with the account.
-     *
-     * @return A list of transaction descriptions.
+     * Displays the account details including transaction history.
+     * Provides a comprehensive view of the account's transactions, type, balance, and state.
      */
-    public ArrayList<String> getTransactions() {
-        return transactions;
+    public void makeView(){
+        makeView(state());
     }
 
     /**
-     * Sets the list of transactions for the account.
+     * Displays the account details in a given state, which may be older than the current one. The history
+     * up to that state never changes, so the account does not need to be locked while it is printed.
      *
-     * @param transactions The new list of transactions.
+     * @param state The state, e.g. read with the account locked.
      */
-    public void setTransactions(ArrayList<String> transactions) {
-        this.transactions = transactions;
+    public void makeView(AccountState state){
+        view(state, 0, state.getHistory(), false);
     }
 
     /**
-     * Formats a numerical amount to a string with three decimal places.
+     * Displays the account details with a page of the transaction history.
      *
-     * @param n The number to be formatted.
-     * @return The formatted string with 3 sings after the point.
+     * @param offset The index of the first entry shown, counted from the end when negative, e.g. -10 shows
+     *               the last ten entries.
+     * @param limit  The largest number of entries shown.
      */
-    public static String format(double n){
-        return String.format("%.3f",n).replace(",", ".");
+    public void makeView(int offset, int limit){
+        makeView(state(), offset, limit);
     }
-}
-
-/**
- * Specialized SavingsAccount class that extends Account and implements the FeeStrategies interface.
- * This account type handles transactions with a fee deduction.
- */
-class SavingsAccount extends Account implements FeeStrategies {
-    String type = "Savings";
-    double fee = 0.015; // Transaction fee rate
-    double sum_without_fee = 1 - fee; // Amount after fee deduction
 
     /**
-     * Constructor to initialize a SavingsAccount with an owner and an initial deposit.
-     * @param owner The owner of the account.
-     * @param initial_deposit The initial deposit to start the account with.
+     * Displays the account details in a given state with a page of the transaction history.
+     *
+     * @param state  The state, e.g. read with the account locked.
+     * @param offset The index of the first entry shown, counted from the end when negative.
+     * @param limit  The largest number of entries shown.
      */
-    public SavingsAccount(String owner, double initial_deposit) {
-        super(owner, initial_deposit);
+    public void makeView(AccountState state, int offset, int limit){
+        int size = state.getHistory();
+        int from = offset < 0 ? Math.max(0, size + offset) : Math.min(offset, size);
+        view(state, from, from + Math.min(Math.max(limit, 0), size - from), true);
     }
 
     /**
-     * Implements the transfer method with a transaction fee deduction.
-     * Ensures that the account is active and has sufficient funds before proceeding with the transfer.
-     * @param fund The amount of money to transfer.
-     * @param getter The recipient account.
+     * Prints the view line. Short histories are built in memory and printed at once, long ones are streamed
+     * to the sink in parts so a View of millions of entries needs no buffer of its size.
+     *
+     * @param state The state shown.
+     * @param from  The index of the first entry shown.
+     * @param to    The index after the last entry shown.
+     * @param paged True to say which entries are shown.
      */
-    @Override
-    public void makeTransfer(double fund, Account getter) {
-        if (this.getState()){ // Check if the account is active
-            if (this.getDeposit() >= fund){ // Check for sufficient funds
-                this.setDeposit(this.getDeposit() - fund);
-                getter.setDeposit(getter.getDeposit() + fund * sum_without_fee);
-                this.transactions.add("Transfer $" + format(fund));
-                // Feedback to user about successful transfer and fee deduction
-                System.out.println(this.owner + " successfully transferred $" + format(fund * sum_without_fee) + " to " + getter.owner + ". New Balance: $" + format(this.getDeposit()) + ". Transaction Fee: $" + format(fund * fee) + " (1.5%) in the system.");
+    private void view(AccountState state, int from, int to, boolean paged){
+        StringBuilder res = new StringBuilder();
+        res.append(this.owner).append(type.viewLabel);
+        Money.append(res, state.getBalance()).append(", ");
+        if (state.isActive()){
+            res.append("State: ").append("Active").append(", ");
+        } else {
+            res.append("State: ").append("Inactive").append(", ");
+        }
+        res.append("Transactions");
+        if (paged){
+            res.append(" (");
+            if (to > from){
+                res.append(from + 1).append('-').append(to);
             } else {
-                System.out.println("Error: Insufficient funds for " + owner + ".");
+                res.append("none");
             }
-        } else {
-            System.out.println("Error: Account " + this.getOwner() + " is inactive.");
+            res.append(" of ").append(state.getHistory()).append(")");
+        }
+        res.append(": ").append("[");
+        if (to - from <= TransactionJournal.CHUNK_ENTRIES){
+            for (int i = from; i < to; i++){
+                if (i < to - 1){
+                    transactions.appendTo(res, i).append(", ");
+                } else {
+                    transactions.appendTo(res, i);
+                }
+            }
+            res.append("].");
+            Output.println(res);
+            return;
+        }
+        OutputSink sink = Output.getSink();
+        synchronized (sink){ // Keep the parts of the line together
+            sink.writePart(res);
+            transactions.writeTo(sink, from, to);
+            sink.writeLine("].");
         }
     }
 
     /**
-     * Implements the withdrawal method with a transaction fee deduction.
-     * Ensures that the account is active and has sufficient funds before allowing withdrawal.
-     * @param fund The amount to withdraw.
+     * Returns the type name of this account.
+     *
+     * @return The type of the account, e.g. "Savings".
      */
-    @Override
-    public void makeWithdraw(double fund) {
-        if (this.getState()){ // Check if the account is active
-            if (this.getDeposit() >= fund){ // Check for sufficient funds
-                this.setDeposit(this.getDeposit() - fund);
-                this.transactions.add("Withdrawal $" + format(fund));
-                // Feedback to user about successful withdrawal and fee deduction
-                System.out.println(this.owner + " successfully withdrew $" + format(fund * sum_without_fee) + ". New Balance: $" + format(this.getDeposit()) + ". Transaction Fee: $" + format(fund * fee) + " (1.5%) in the system." );
-            } else {
-                System.out.println("Error: Insufficient funds for " + owner + ".");
-            }
-        } else {
-            System.out.println("Error: Account " + owner + " is inactive.");
-        }
+    public String getType(){
+        return type.name;
+    }
 
+    /**
+     * Returns the type of this account with its fee schedule.
+     *
+     * @return The type.
+     */
+    public AccountType getAccountType(){
+        return type;
     }
 
     /**
-     * Displays the account details including transaction history.
-     * Provides a comprehensive view of the account's transactions, type, balance, and state.
+     * Saves the current state before a change if an open snapshot may still need it. Called with the account
+     * locked, before anything is changed; only the first change of an epoch saves anything.
+     *
+     * @param stamp      The epoch of the change.
+     * @param oldestOpen The epoch of the oldest open snapshot, Long.MAX_VALUE if there is none.
      */
-    @Override
-    public void makeView(){
-        StringBuilder res = new StringBuilder();
-        res.append(this.owner).append("'s Account: ");
-        res.append("Type: ").append(type).append(", ");
-        res.append("Balance: $").append(format(this.getDeposit())).append(", ");
-        if (this.getState()){
-            res.append("State: ").append("Active").append(", ");
-        } else {
-            res.append("State: ").append("Inactive").append(", ");
-        }
-        res.append("Transactions: ").append("[");
-        for (int i = 0; i < transactions.size(); i++){
-            if (i < transactions.size() - 1){
-                res.append(transactions.get(i)).append(", ");
-            } else {
-                res.append(transactions.get(i));
+    void keepVersion(long stamp, long oldestOpen){
+        Version last = undo;
+        if (oldestOpen == Long.MAX_VALUE){
+            if (last != null){
+                undo = null; // No snapshot needs the saved states any more
             }
+            return;
         }
-        res.append("].");
-        System.out.println(res);
+        if (last != null && last.stamp == stamp){
+            return; // The state from before this epoch is saved already
+        }
+        undo = new Version(stamp, getDeposit(), getState(), transactions.size(), last != null && last.stamp > oldestOpen ? last : null);
+        VarHandle.releaseFence(); // The saved state has to be visible before any of the changes
     }
-}
 
-/**
- * Specialized CheckingAccount class that extends Account and implements the FeeStrategies interface.
- * This account type handles transactions with a fee deduction.
- */
-class CheckingAccount extends Account implements FeeStrategies{
-    String type = "Checking";
-    double fee = 0.020; // Transaction fee rate
-    double sum_without_fee = 1 - fee; // Amount after fee deduction
+    /**
+     * Reads the state of the account as seen by a snapshot, without locking.
+     *
+     * @param epoch The epoch of the snapshot.
+     * @return The state.
+     */
+    AccountState stateAt(long epoch){
+        while (true){
+            Version last = undo;
+            Version before = null; // Oldest saved state replaced after the snapshot
+            for (Version v = last; v != null && v.stamp > epoch; v = v.older){
+                before = v;
+            }
+            if (before != null){
+                return new AccountState(owner, type.name, before.balance, before.active, before.history);
+            }
+            long balance = getDeposit();
+            boolean active = getState();
+            int history = transactions.size();
+            VarHandle.acquireFence(); // Read the state before checking that no change started meanwhile
+            if (undo == last){
+                return new AccountState(owner, type.name, balance, active, history);
+            }
+        }
+    }
 
     /**
-     * Constructor to initialize a CheckingAccount with an owner and an initial deposit.
-     * @param owner The owner of the account.
-     * @param initial_deposit The initial deposit to start the account with.
+     * Reads the current state. The account has to be locked.
+     *
+     * @return The state.
      */
-    public CheckingAccount(String owner, double initial_deposit) {
-        super(owner, initial_deposit);
+    AccountState state(){
+        return new AccountState(owner, type.name, getDeposit(), getState(), transactions.size());
     }
 
     /**
-     * Implements the transfer method with a transaction fee deduction.
-     * Ensures that the account is active and has sufficient funds before proceeding with the transfer.
-     * @param fund The amount of money to transfer.
-     * @param getter The recipient account.
+     * Puts the account into a previously saved state without printing anything. Used when loading a snapshot.
+     *
+     * @param balance      The saved balance.
+     * @param active       The saved activation state.
+     * @param transactions The saved transaction history.
      */
-    @Override
-    public void makeTransfer(double fund, Account getter) {
-        if (this.getState()){ // Check if the account is active
-            if (this.getDeposit() >= fund){ // Check for sufficient funds
-                this.setDeposit(this.getDeposit() - fund);
-                getter.setDeposit(getter.getDeposit() + fund * sum_without_fee);
-                this.transactions.add("Transfer $" + format(fund));
-                // Feedback to user about successful transfer and fee deduction
-                System.out.println(this.owner + " successfully transferred $" + format(fund * sum_without_fee) + " to " + getter.owner + ". New Balance: $" + format(this.getDeposit()) + ". Transaction Fee: $" + format(fund * fee) + " (2.0%) in the system.");
-            } else {
-                System.out.println("Error: Insufficient funds for " + owner + ".");
-            }
-        } else {
-            System.out.println("Error: Account " + this.getOwner() + " is inactive.");
+    void restore(long balance, boolean active, TransactionJournal transactions) {
+        if (store != null){
+            throw new IllegalStateException("Accounts of a mapped store are restored by the store");
         }
+        this.deposit = balance;
+        this.active = active;
+        this.transactions = transactions;
     }
 
     /**
-     * Implements the withdrawal method with a transaction fee deduction.
-     * Ensures that the account is active and has sufficient funds before allowing withdrawal.
-     * @param fund The amount to withdraw.
+     * Returns the name of the account owner.
+     *
+     * @return The owner of the account.
      */
-    @Override
-    public void makeWithdraw(double fund) {
-        if (this.getState()){ // Check if the account is active
-            if (this.getDeposit() >= fund){ // Check for sufficient funds
-                this.setDeposit(this.getDeposit() - fund);
-                this.transactions.add("Withdrawal $" + format(fund));
-                // Feedback to user about successful withdrawal and fee deduction
-                System.out.println(this.owner + " successfully withdrew $" + format(fund * sum_without_fee) + ". New Balance: $" + format(this.getDeposit()) + ". Transaction Fee: $" + format(fund * fee) + " (2.0%) in the system." );
-            } else {
-                System.out.println("Error: Insufficient funds for " + owner + ".");
-            }
-        } else {
-            System.out.println("Error: Account " + owner + " is inactive.");
-        }
+    public String getOwner() {
+        return owner;
+    }
 
+    /**
+     * Returns the id of the account, which stays the same for the life of the bank system.
+     *
+     * @return The id, -1 if the account is not registered.
+     */
+    public int getId() {
+        return id;
     }
 
     /**
-     * Displays the account details including transaction history.
-     * Provides a comprehensive view of the account's transactions, type, balance, and state.
+     * Returns the current activation state of the account.
+     *
+     * @return True if the account is active, false otherwise.
      */
-    @Override
-    public void makeView(){
-        StringBuilder res = new StringBuilder();
-        res.append(this.owner).append("'s Account: ");
-        res.append("Type: ").append(type).append(", ");
-        res.append("Balance: $").append(format(this.getDeposit())).append(", ");
-        if (this.getState()){
-            res.append("State: ").append("Active").append(", ");
+    public boolean getState() {
+        return store == null ? active : store.active(slot);
+    }
+
+    /**
+     * Sets the activation state of the account and provides feedback about the state change.
+     *
+     * @param state The new activation state of the account.
+     */
+    public void setState(boolean state) {
+        if (store == null){
+            this.active = state;
         } else {
-            res.append("State: ").append("Inactive").append(", ");
+            store.active(slot, state);
         }
-        res.append("Transactions: ").append("[");
-        for (int i = 0; i < transactions.size(); i++){
-            if (i < transactions.size() - 1){
-                res.append(transactions.get(i)).append(", ");
-            } else {
-                res.append(transactions.get(i));
-            }
+        // Feedback to user about state change
+        if (state){
+            Output.line().append(this.getOwner()).append("'s account is now activated.").println();
+        } else {
+            Output.line().append(this.getOwner()).append("'s account is now deactivated.").println();
         }
-        res.append("].");
-        System.out.println(res);
     }
-}
-
-/**
- * Specialized BusinessAccount class that extends Account and implements the FeeStrategies interface.
- * This account type handles transactions with a fee deduction.
- */
-class BusinessAccount extends Account implements FeeStrategies{
-    String type = "Business";
-    double fee = 0.025; // Transaction fee rate
-    double sum_without_fee = 1 - fee; // Amount after fee deduction
 
     /**
-     * Constructor to initialize a BusinessAccount with an owner and an initial deposit.
-     * @param owner The owner of the account.
-     * @param initial_deposit The initial deposit to start the account with.
+     * Returns the current deposit balance of the account, without the credits of a hot account that are
+     * not folded in yet, see settle().
+     *
+     * @return The current balance.
      */
-    public BusinessAccount(String owner, double initial_deposit) {
-        super(owner, initial_deposit);
+    public long getDeposit() {
+        return store == null ? deposit : store.balance(slot);
     }
 
     /**
-     * Implements the transfer method with a transaction fee deduction.
-     * Ensures that the account is active and has sufficient funds before proceeding with the transfer.
-     * @param fund The amount of money to transfer.
-     * @param getter The recipient account.
+     * Sets the current deposit balance.
+     *
+     * @param deposit The new deposit amount.
      */
-    @Override
-    public void makeTransfer(double fund, Account getter) {
-        if (this.getState()){ // Check if the account is active
-            if (this.getDeposit() >= fund){ // Check for sufficient funds
-                this.setDeposit(this.getDeposit() - fund);
-                getter.setDeposit(getter.getDeposit() + fund * sum_without_fee);
-                this.transactions.add("Transfer $" + format(fund));
-                // Feedback to user about successful transfer and fee deduction
-                System.out.println(this.owner + " successfully transferred $" + format(fund * sum_without_fee) + " to " + getter.owner + ". New Balance: $" + format(this.getDeposit()) + ". Transaction Fee: $" + format(fund * fee) + " (2.5%) in the system.");
-            } else {
-                System.out.println("Error: Insufficient funds for " + owner + ".");
-            }
+    public void setDeposit(long deposit) {
+        if (store == null){
+            this.deposit = deposit;
         } else {
-            System.out.println("Error: Account " + this.getOwner() + " is inactive.");
+            store.balance(slot, deposit);
         }
     }
 
     /**
-     * Implements the withdrawal method with a transaction fee deduction.
-     * Ensures that the account is active and has sufficient funds before allowing withdrawal.
-     * @param fund The amount to withdraw.
+     * Returns the initial deposit amount.
+     *
+     * @return The amount of the initial deposit.
      */
-    @Override
-    public void makeWithdraw(double fund) {
-        if (this.getState()){ // Check if the account is active
-            if (this.getDeposit() >= fund){ // Check for sufficient funds
-                this.setDeposit(this.getDeposit() - fund);
-                this.transactions.add("Withdrawal $" + format(fund));
-                // Feedback to user about successful withdrawal and fee deduction
-                System.out.println(this.owner + " successfully withdrew $" + format(fund * sum_without_fee) + ". New Balance: $" + format(this.getDeposit()) + ". Transaction Fee: $" + format(fund * fee) + " (2.5%) in the system." );
-            } else {
-                System.out.println("Error: Insufficient funds for " + owner + ".");
-            }
-        } else {
-            System.out.println("Error: Account " + owner + " is inactive.");
-        }
+    public long getInitial_deposit() {
+        return store == null ? initial_deposit : store.initial(slot);
+    }
 
+    /**
+     * Returns the list of all transactions associated with the account. The descriptions are rendered
+     * from the journal on every call.
+     *
+     * @return A list of transaction descriptions.
+     */
+    public ArrayList<String> getTransactions() {
+        return transactions.render();
     }
 
     /**
-     * Displays the account details including transaction history.
-     * Provides a comprehensive view of the account's transactions, type, balance, and state.
+     * Sets the list of transactions for the account.
+     *
+     * @param transactions The new list of transactions, in the format returned by getTransactions().
      */
-    @Override
-    public void makeView(){
-        StringBuilder res = new StringBuilder();
-        res.append(this.owner).append("'s Account: ");
-        res.append("Type: ").append(type).append(", ");
-        res.append("Balance: $").append(format(this.getDeposit())).append(", ");
-        if (this.getState()){
-            res.append("State: ").append("Active").append(", ");
-        } else {
-            res.append("State: ").append("Inactive").append(", ");
-        }
-        res.append("Transactions: ").append("[");
-        for (int i = 0; i < transactions.size(); i++){
-            if (i < transactions.size() - 1){
-                res.append(transactions.get(i)).append(", ");
-            } else {
-                res.append(transactions.get(i));
-            }
+    public void setTransactions(ArrayList<String> transactions) {
+        this.transactions = TransactionJournal.parse(transactions);
+    }
+
+    /**
+     * Returns the compact transaction journal of the account.
+     *
+     * @return The journal.
+     */
+    public TransactionJournal getJournal() {
+        return transactions;
+    }
+
+    /**
+     * State of an account saved before a change, for snapshots opened before it.
+     */
+    private static final class Version {
+        final long stamp; // Epoch of the change that replaced this state
+        final long balance;
+        final boolean active;
+        final int history;
+        final Version older; // The state saved before, null if no snapshot needs it
+
+        Version(long stamp, long balance, boolean active, int history, Version older) {
+            this.stamp = stamp;
+            this.balance = balance;
+            this.active = active;
+            this.history = history;
+            this.older = older;
         }
-        res.append("].");
-        System.out.println(res);
     }
 }
@@ -0,0 +1,99 @@
+import bench.Bank;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Implementation of the benchmark interface, in the package of the bank classes so it can use them directly.
+ * Output goes to a sink that only counts characters, so formatting is measured but no I/O.
+ */
+public class BankDriver implements Bank {
+    private static final String[] TYPES = {"Savings", "Checking", "Business"};
+    private long printed;
+
+    /**
+     * Installs the counting sink.
+     */
+    public BankDriver() {
+        Output.setSink(new OutputSink() {
+            @Override
+            public void writeLine(CharSequence line) {
+                printed += line.length();
+            }
+
+            @Override
+            public void writePart(CharSequence part) {
+                printed += part.length();
+            }
+
+            @Override
+            public void flush() {}
+        });
+    }
+
+    @Override
+    public void populate(String[] owners) {
+        BankSystem.reset();
+        long initial = Money.ofThousandths(1_000_000_000);
+        for (int i = 0; i < owners.length; i++){
+            BankSystem.createAccount(owners[i], initial, TYPES[i % TYPES.length]);
+        }
+    }
+
+    @Override
+    public void deposit(String owner, long amount) {
+        BankSystem.Deposit(Money.ofThousandths(amount), owner);
+    }
+
+    @Override
+    public void withdraw(String owner, long amount) {
+        BankSystem.Withdrawal(Money.ofThousandths(amount), owner);
+    }
+
+    @Override
+    public void transfer(String sender, String getter, long amount) {
+        BankSystem.Transfer(sender, getter, Money.ofThousandths(amount));
+    }
+
+    @Override
+    public void view(String owner) {
+        BankSystem.View(owner);
+    }
+
+    @Override
+    public void replay(byte[] file) throws IOException {
+        try (CommandReader in = new CommandReader(new ByteArrayInputStream(file))) {
+            in.expectLine();
+            Main.run(in, in.intValue(0));
+        }
+    }
+
+    @Override
+    public Runnable batch(String[] senders, String[] getters, long amount) {
+        Batch batch = new Batch();
+        for (int i = 0; i < senders.length; i++){
+            batch.transfer(senders[i], getters[i], Money.ofThousandths(amount));
+        }
+        return () -> BankSystem.execute(batch);
+    }
+
+    @Override
+    public int topBalances(int count) {
+        return BankSystem.topBalances(count).size();
+    }
+
+    @Override
+    public int balancesBelow(long amount, int limit) {
+        return BankSystem.balancesBelow(Money.ofThousandths(amount), limit).size();
+    }
+
+    @Override
+    public int findAccounts(String type, boolean active, int limit) {
+        return BankSystem.findAccounts(type, active, limit).size();
+    }
+
+    @Override
+    public long printed() {
+        return printed;
+    }
+}
@@ -0,0 +1,449 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Load test of the whole command path. "generate" writes a seeded command file in the input format of Main, with
+ * a configurable mix of Create/Deposit/Withdraw/Transfer/Activate/Deactivate/View, Zipfian skew of the owners,
+ * a share of commands that fail on purpose and pre-filled histories. "run" replays such a file like Main does,
+ * reports throughput, latency percentiles and bytes allocated per command, and checks the output against a
+ * reference run, e.g. the standard output of Main for the same file on a known good build.
+ * Packaged with the benchmarks, see usage() for the options.
+ */
+class BankWorkload {
+    private static final String[] TYPES = {"Savings", "Checking", "Business"};
+    private static final int REDRAWS = 8; // Draws to find an active owner before a command may hit an inactive one
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Returns the command line help, printed for arguments that cannot be parsed.
+     * @return The text, one line per option.
+     */
+    static String usage() {
+        return "Usage: java -cp tools/target/benchmarks.jar BankWorkload generate FILE [options]\n"
+                + "       java -cp tools/target/benchmarks.jar BankWorkload run FILE [options]\n"
+                + "generate writes a command file:\n"
+                + "  --seed N              seed of the random choices\n"
+                + "  --ops N               commands after the accounts are created\n"
+                + "  --accounts N          number of owners\n"
+                + "  --skew S              Zipf exponent of the owner choice, 0 for uniform\n"
+                + "  --errors P            share of commands that fail on purpose\n"
+                + "  --history N           transactions per account before the mix starts\n"
+                + "  --page N              page size of the View commands, 0 for whole histories\n"
+                + "  --mix C,D,W,T,S,V     weights of Create, Deposit, Withdraw, Transfer, (De)activate, View\n"
+                + "run replays one and reports throughput, latencies and allocation:\n"
+                + "  --reference OUT       check the output against OUT\n"
+                + "  --warmup N            untimed runs first\n"
+                + "  --double-money        double arithmetic like the original program\n";
+    }
+
+    /**
+     * Generates a command file or runs one.
+     * @param args The mode, the file and the options, see the class comment.
+     * @throws IOException If the file cannot be written or read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("generate") || args[0].equals("run"))){
+            System.err.print(usage());
+            System.exit(2);
+        }
+        boolean generate = args[0].equals("generate");
+        Path file = Path.of(args[1]);
+        Generator generator = new Generator();
+        Path reference = null; // Expected output, null to skip the check
+        int warmup = 0;
+        try {
+            for (int a = 2; a < args.length; a++){
+                if (generate){
+                    switch (args[a]) {
+                        case "--seed" -> generator.seed = Long.parseLong(args[++a]);
+                        case "--ops" -> generator.ops = Integer.parseInt(args[++a]);
+                        case "--accounts" -> generator.accounts = Integer.parseInt(args[++a]);
+                        case "--skew" -> generator.skew = Double.parseDouble(args[++a]);
+                        case "--errors" -> generator.errors = Double.parseDouble(args[++a]);
+                        case "--history" -> generator.history = Integer.parseInt(args[++a]);
+                        case "--page" -> generator.page = Integer.parseInt(args[++a]);
+                        case "--mix" -> generator.mix = Arrays.stream(args[++a].split(",")).mapToInt(Integer::parseInt).toArray();
+                        default -> throw new IllegalArgumentException("Unknown option " + args[a]);
+                    }
+                } else {
+                    switch (args[a]) {
+                        case "--reference" -> reference = Path.of(args[++a]);
+                        case "--warmup" -> warmup = Integer.parseInt(args[++a]);
+                        case "--double-money" -> Money.setDoubleCompat(true);
+                        default -> throw new IllegalArgumentException("Unknown option " + args[a]);
+                    }
+                }
+            }
+            if (generate){
+                generator.check();
+            }
+        } catch (IndexOutOfBoundsException e) {
+            System.err.print("Error: " + args[args.length - 1] + " needs a value\n" + usage());
+            System.exit(2);
+        } catch (IllegalArgumentException e) { // Also a number that does not parse
+            System.err.print("Error: " + e.getMessage() + "\n" + usage());
+            System.exit(2);
+        }
+        if (generate){
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+                generator.write(out);
+            }
+            System.err.println("Wrote " + generator.lines() + " commands to " + file);
+            return;
+        }
+        for (int w = 0; w < warmup; w++){ // Untimed runs so the measured one sees compiled code
+            Output.setSink(new CheckingSink(null));
+            replay(file, new LatencyHistogram());
+            BankSystem.reset();
+        }
+        CheckingSink sink = new CheckingSink(reference == null ? null
+                : new BufferedInputStream(Files.newInputStream(reference), 1 << 16));
+        Output.setSink(sink);
+        LatencyHistogram latencies = new LatencyHistogram();
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        int ops = replay(file, latencies);
+        long nanos = System.nanoTime() - start;
+        long bytes = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        long[] counts = latencies.snapshot();
+        System.out.printf("%d commands in %.3f s: %.0f ops/s%n", ops, nanos / 1e9, ops * 1e9 / nanos);
+        System.out.printf("latency ns: p50 %d, p99 %d, p999 %d, max %d%n", LatencyHistogram.percentile(counts, 0.5),
+                LatencyHistogram.percentile(counts, 0.99), LatencyHistogram.percentile(counts, 0.999), latencies.max());
+        System.out.printf("allocated: %.1f B/op%n", (double) bytes / ops);
+        boolean matches = sink.matches();
+        System.out.println(sink.verdict());
+        sink.close();
+        if (!matches){
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a command file like Main does with a single thread, timing each command.
+     * @param file The command file.
+     * @param latencies Receives the time of each command.
+     * @return The number of commands.
+     * @throws IOException If the file cannot be read.
+     */
+    private static int replay(Path file, LatencyHistogram latencies) throws IOException {
+        try (CommandReader in = CommandReader.open(file.toString())) {
+            in.expectLine();
+            int n = in.intValue(0);
+            for (int i = 0; i < n; i++){
+                in.expectLine();
+                long start = System.nanoTime();
+                Main.execute(in);
+                latencies.record(System.nanoTime() - start);
+            }
+            Output.flush();
+            return n;
+        }
+    }
+
+    /**
+     * Writes a seeded command file. The same settings always give the same file. The accounts are created
+     * first, then each gets the deposits of its history, then the mix follows. Owners of the mix are drawn
+     * from the initial accounts with Zipfian skew, the first accounts being the hottest. Commands meant to
+     * succeed do so; the share given by errors fails on purpose with an unknown owner, an amount larger
+     * than any balance, a duplicate owner or a state the account already has.
+     */
+    static final class Generator {
+        long seed = 42;
+        int ops = 1_000_000; // Commands of the mix
+        int accounts = 10_000; // Accounts created before the mix
+        double skew = 0.99; // Zipf exponent, 0 for uniform owners
+        double errors = 0.01; // Share of the mix that fails on purpose
+        int history = 0; // Deposits per account before the mix
+        int page = 0; // History entries shown by a View, the latest ones, 0 for the whole history
+        int[] mix = {2, 30, 20, 30, 8, 10}; // Weights of Create, Deposit, Withdraw, Transfer, Activate/Deactivate, View
+
+        private Random random;
+        private double[] cdf; // Cumulative Zipf probability of each owner rank
+        private boolean[] inactive;
+        private final ArrayDeque<Integer> deactivated = new ArrayDeque<>(); // Inactive owners, oldest first
+        private int created; // Owners created so far, new owners of the mix are numbered on
+        private final StringBuilder line = new StringBuilder();
+
+        /**
+         * Returns the number of commands in the file.
+         * @return The count.
+         */
+        long lines() {
+            return accounts + (long) accounts * history + ops;
+        }
+
+        /**
+         * Checks the options.
+         * @throws IllegalArgumentException If the mix does not have a weight per kind of command, or the file
+         *         would have more commands than its count line can hold.
+         */
+        void check() {
+            if (mix.length != 6){
+                throw new IllegalArgumentException("The mix needs 6 weights, got " + mix.length);
+            }
+            if (lines() > Integer.MAX_VALUE){
+                throw new IllegalArgumentException("Too many commands: " + lines());
+            }
+        }
+
+        /**
+         * Writes the file.
+         * @param out The destination.
+         * @throws IOException If writing fails.
+         */
+        void write(OutputStream out) throws IOException {
+            random = new Random(seed);
+            cdf = zipf(accounts, skew);
+            inactive = new boolean[accounts];
+            emit(out, line.append(lines()));
+            for (int i = 0; i < accounts; i++){
+                create(out, owner(created++));
+            }
+            for (int h = 0; h < history; h++){
+                for (int i = 0; i < accounts; i++){
+                    emit(out, line.append("Deposit ").append(owner(i)).append(' ').append(1 + random.nextInt(100)));
+                }
+            }
+            int total = Arrays.stream(mix).sum();
+            for (int i = 0; i < ops; i++){
+                int pick = random.nextInt(total);
+                int kind = 0;
+                while (pick >= mix[kind]){
+                    pick -= mix[kind++];
+                }
+                boolean fail = random.nextDouble() < errors;
+                switch (kind) {
+                    case 0 -> create(out, fail ? owner(draw()) : owner(created++));
+                    case 1 -> emit(out, line.append("Deposit ").append(fail ? ghost() : owner(draw()))
+                            .append(' ').append(random.nextInt(500)).append('.').append(random.nextInt(1000)));
+                    case 2 -> emit(out, line.append("Withdraw ").append(owner(active()))
+                            .append(' ').append(fail ? "1000000000000" : amount()));
+                    case 3 -> emit(out, line.append("Transfer ").append(owner(active())).append(' ')
+                            .append(fail ? ghost() : owner(draw())).append(' ').append(amount()));
+                    case 4 -> state(out, fail);
+                    default -> {
+                        line.append("View ").append(fail ? ghost() : owner(draw()));
+                        emit(out, page > 0 ? line.append(' ').append(-page).append(' ').append(page) : line);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes an Activate or Deactivate. Valid ones reactivate the account deactivated longest ago half of
+         * the time, so only a few accounts are inactive at any time.
+         */
+        private void state(OutputStream out, boolean fail) throws IOException {
+            int owner = draw();
+            if (fail){ // Repeats the state the account already has
+                emit(out, line.append(inactive[owner] ? "Deactivate " : "Activate ").append(owner(owner)));
+            } else if (!deactivated.isEmpty() && random.nextBoolean()){
+                int back = deactivated.poll();
+                inactive[back] = false;
+                emit(out, line.append("Activate ").append(owner(back)));
+            } else {
+                owner = active();
+                if (inactive[owner]){ // No active owner found, reactivate it instead
+                    deactivated.remove(owner);
+                    inactive[owner] = false;
+                    emit(out, line.append("Activate ").append(owner(owner)));
+                } else {
+                    inactive[owner] = true;
+                    deactivated.add(owner);
+                    emit(out, line.append("Deactivate ").append(owner(owner)));
+                }
+            }
+        }
+
+        private void create(OutputStream out, String owner) throws IOException {
+            emit(out, line.append("Create Account ").append(TYPES[random.nextInt(TYPES.length)]).append(' ')
+                    .append(owner).append(' ').append(1000 + random.nextInt(1_000_000)));
+        }
+
+        private String amount() {
+            return random.nextInt(100) + "." + random.nextInt(1000);
+        }
+
+        private String ghost() {
+            return "Ghost" + random.nextInt(1000);
+        }
+
+        /**
+         * Draws an initial owner with the Zipf distribution.
+         * @return The number of the owner.
+         */
+        private int draw() {
+            int i = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(i < 0 ? -i - 1 : i, accounts - 1);
+        }
+
+        /**
+         * Draws an owner, preferring active ones so withdrawals and transfers meant to succeed do.
+         * @return The number of the owner.
+         */
+        private int active() {
+            int owner = draw();
+            for (int d = 1; d < REDRAWS && inactive[owner]; d++){
+                owner = draw();
+            }
+            return owner;
+        }
+
+        private void emit(OutputStream out, StringBuilder text) throws IOException {
+            text.append('\n');
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            text.setLength(0);
+        }
+
+        private static String owner(int number) {
+            return "Owner" + number;
+        }
+
+        /**
+         * Computes the cumulative probabilities of ranks 1 to n under Zipf's law, p(k) proportional to 1/k^s.
+         * @param n The number of ranks.
+         * @param s The exponent.
+         * @return The cumulative probability of each rank, the last one being 1.
+         */
+        private static double[] zipf(int n, double s) {
+            double[] cdf = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++){
+                sum += 1 / Math.pow(k + 1, s);
+                cdf[k] = sum;
+            }
+            for (int k = 0; k < n; k++){
+                cdf[k] /= sum;
+            }
+            return cdf;
+        }
+    }
+
+    /**
+     * Sink that compares the output with a reference file as it is written, reading the file along instead
+     * of keeping either in memory. Characters are compared with the UTF-8 bytes of the reference.
+     */
+    static final class CheckingSink implements OutputSink {
+        private final InputStream reference; // Expected output, null to only count
+        private long lines;
+        private long mismatch = -1; // Number of the first line that differs, -1 while all match
+        private char high; // First half of a surrogate pair, 0 if none is pending
+
+        /**
+         * Creates a sink.
+         * @param reference The expected output, null to only count the output.
+         */
+        CheckingSink(InputStream reference) {
+            this.reference = reference;
+        }
+
+        @Override
+        public synchronized void writeLine(CharSequence line) {
+            writePart(line);
+            check('\n');
+            lines++;
+        }
+
+        @Override
+        public synchronized void writePart(CharSequence part) {
+            if (reference == null || mismatch >= 0){
+                return;
+            }
+            for (int i = 0; i < part.length(); i++){
+                check(part.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {}
+
+        private void check(char c) {
+            if (reference == null || mismatch >= 0){
+                return;
+            }
+            if (c < 0x80){
+                expect(c);
+            } else if (c < 0x800){
+                expect(0xC0 | c >> 6);
+                expect(0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c)){
+                high = c;
+            } else if (Character.isLowSurrogate(c)){
+                int point = Character.toCodePoint(high, c);
+                expect(0xF0 | point >> 18);
+                expect(0x80 | point >> 12 & 0x3F);
+                expect(0x80 | point >> 6 & 0x3F);
+                expect(0x80 | point & 0x3F);
+            } else {
+                expect(0xE0 | c >> 12);
+                expect(0x80 | c >> 6 & 0x3F);
+                expect(0x80 | c & 0x3F);
+            }
+        }
+
+        private void expect(int b) {
+            try {
+                if (mismatch < 0 && reference.read() != b){
+                    mismatch = lines + 1;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Tells whether the output equals the reference, which has to be read to its end.
+         * @return True if it matches or there is no reference.
+         */
+        boolean matches() {
+            if (reference == null){
+                return true;
+            }
+            if (mismatch < 0){
+                try {
+                    if (reference.read() >= 0){ // The reference goes on
+                        mismatch = lines + 1;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return mismatch < 0;
+        }
+
+        /**
+         * Describes the outcome of the check.
+         * @return One line of text.
+         */
+        String verdict() {
+            if (reference == null){
+                return "output: " + lines + " lines, not checked";
+            }
+            return matches() ? "output: " + lines + " lines, matches the reference"
+                    : "output: DIFFERS from the reference at line " + mismatch;
+        }
+
+        /**
+         * Closes the reference file.
+         * @throws IOException If closing fails.
+         */
+        void close() throws IOException {
+            if (reference != null){
+                reference.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import java.io.IOException;
+
+/**
+ * The operations of the bank system that the benchmarks measure. The bank classes live in the unnamed package,
+ * which classes of a named package cannot refer to, and JMH only generates benchmarks in a named package; so
+ * the benchmarks call the bank through this interface, implemented by BankDriver next to the bank classes.
+ * Amounts are thousandths of a dollar.
+ */
+public interface Bank {
+    /**
+     * Loads the implementation. Called once per trial, the calls through the interface are monomorphic and
+     * inlined like direct calls.
+     * @return The bank.
+     */
+    static Bank load() {
+        try {
+            return (Bank) Class.forName("BankDriver").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BankDriver is not on the class path", e);
+        }
+    }
+
+    /**
+     * Removes all accounts and creates one per owner, of alternating types, each with the same deposit.
+     * @param owners The owners.
+     */
+    void populate(String[] owners);
+
+    /**
+     * Runs a deposit like the command does.
+     * @param owner The owner.
+     * @param amount The amount.
+     */
+    void deposit(String owner, long amount);
+
+    /**
+     * Runs a withdrawal like the command does.
+     * @param owner The owner.
+     * @param amount The amount.
+     */
+    void withdraw(String owner, long amount);
+
+    /**
+     * Runs a transfer like the command does.
+     * @param sender The sending owner.
+     * @param getter The receiving owner.
+     * @param amount The amount.
+     */
+    void transfer(String sender, String getter, long amount);
+
+    /**
+     * Prints the view of an account like the command does.
+     * @param owner The owner.
+     */
+    void view(String owner);
+
+    /**
+     * Runs a command file, count line first, like Main does with its input.
+     * @param file The file.
+     * @throws IOException If reading fails.
+     */
+    void replay(byte[] file) throws IOException;
+
+    /**
+     * Prepares an atomic batch of transfers.
+     * @param senders The sending owners.
+     * @param getters The receiving owners, one per sender.
+     * @param amount The amount of every transfer.
+     * @return Runs the batch once per call.
+     */
+    Runnable batch(String[] senders, String[] getters, long amount);
+
+    /**
+     * Queries the accounts with the highest balances.
+     * @param count The number of accounts.
+     * @return The number of accounts found.
+     */
+    int topBalances(int count);
+
+    /**
+     * Queries accounts with a balance below an amount.
+     * @param amount The amount.
+     * @param limit The largest number of accounts returned.
+     * @return The number of accounts found.
+     */
+    int balancesBelow(long amount, int limit);
+
+    /**
+     * Queries the accounts of a type in a state.
+     * @param type The type name.
+     * @param active The state.
+     * @param limit The largest number of accounts returned.
+     * @return The number of accounts found.
+     */
+    int findAccounts(String type, boolean active, int limit);
+
+    /**
+     * Returns the number of characters printed so far, all output goes to a sink that only counts them.
+     * @return The number of characters.
+     */
+    long printed();
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * A bank populated with a given number of accounts, created anew for every trial, so each benchmark starts from
+ * the same state whatever ran before it. Accounts are picked from a pre-drawn sequence, so the random generator
+ * is not measured.
+ */
+@State(Scope.Benchmark)
+public class BankState {
+    static final int REPLAY_COMMANDS = 200_000; // Commands in the generated replay file
+    static final int BATCH_SIZE = 1000; // Transfers per atomic batch
+    private static final int PICKS = 1 << 16;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int accounts;
+
+    Bank bank;
+    String[] owners;
+    private int[] picks;
+    private int next;
+    byte[] replayFile;
+
+    /**
+     * Creates the accounts, the picks and the replay file.
+     */
+    @Setup(Level.Trial)
+    public void populate() {
+        bank = Bank.load();
+        owners = owners(accounts);
+        bank.populate(owners);
+        Random random = new Random(42);
+        picks = new int[PICKS];
+        for (int i = 0; i < PICKS; i++){
+            picks[i] = random.nextInt(accounts);
+        }
+        replayFile = replayFile(owners, random);
+    }
+
+    /**
+     * Returns the owner of the next picked account.
+     * @return The owner.
+     */
+    String pick() {
+        return owners[picks[next++ & (PICKS - 1)]];
+    }
+
+    /**
+     * Returns the names of a number of owners.
+     * @param accounts The number of owners.
+     * @return The names.
+     */
+    static String[] owners(int accounts) {
+        String[] owners = new String[accounts];
+        for (int i = 0; i < accounts; i++){
+            owners[i] = "Owner" + i;
+        }
+        return owners;
+    }
+
+    private static byte[] replayFile(String[] owners, Random random) {
+        StringBuilder file = new StringBuilder().append(REPLAY_COMMANDS).append('\n');
+        for (int i = 0; i < REPLAY_COMMANDS; i++){
+            String owner = owners[random.nextInt(owners.length)];
+            int kind = random.nextInt(100);
+            if (kind < 35){
+                file.append("Deposit ").append(owner).append(' ').append(random.nextInt(1000)).append(".5");
+            } else if (kind < 60){
+                file.append("Withdraw ").append(owner).append(' ').append(random.nextInt(100));
+            } else if (kind < 90){
+                file.append("Transfer ").append(owner).append(' ').append(owners[random.nextInt(owners.length)])
+                        .append(' ').append(random.nextInt(100)).append(".25");
+            } else if (kind < 95){
+                file.append(kind % 2 == 0 ? "Activate " : "Deactivate ").append(owner);
+            } else {
+                file.append("View ").append(owner);
+            }
+            file.append('\n');
+        }
+        return file.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,153 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the command paths at 1K to 10M accounts. Run all of them with the allocation profiler, whose
+ * gc.alloc.rate.norm column gives the bytes allocated per operation:
+ * java -jar tools/target/benchmarks.jar -prof gc
+ * or a selection, e.g. -p accounts=1000,100000 CommandBenchmarks.deposit. The largest sizes need the heap of
+ * the forked JVM, see @Fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CommandBenchmarks {
+    private static final long AMOUNT = 10_500; // Thousandths
+    private static final long SMALL = 1;
+
+    /**
+     * Creates all accounts of a bank of the given size, measured per whole population since every account
+     * makes the registry larger.
+     * @param population The size.
+     * @param blackhole Keeps the output count alive.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void create(Population population, Blackhole blackhole) {
+        population.bank.populate(population.owners);
+        blackhole.consume(population.bank.printed());
+    }
+
+    /**
+     * Deposits into a picked account.
+     * @param state The bank.
+     */
+    @Benchmark
+    public void deposit(BankState state) {
+        state.bank.deposit(state.pick(), AMOUNT);
+    }
+
+    /**
+     * Withdraws a small amount from a picked account.
+     * @param state The bank.
+     */
+    @Benchmark
+    public void withdraw(BankState state) {
+        state.bank.withdraw(state.pick(), SMALL);
+    }
+
+    /**
+     * Transfers a small amount between two picked accounts.
+     * @param state The bank.
+     */
+    @Benchmark
+    public void transfer(BankState state) {
+        state.bank.transfer(state.pick(), state.pick(), SMALL);
+    }
+
+    /**
+     * Prints the view of a picked account.
+     * @param state The bank.
+     */
+    @Benchmark
+    public void view(BankState state) {
+        state.bank.view(state.pick());
+    }
+
+    /**
+     * Runs an atomic batch of transfers, per transfer.
+     * @param batch The prepared batch.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BankState.BATCH_SIZE)
+    public void batch(BatchState batch) {
+        batch.run.run();
+    }
+
+    /**
+     * Replays a generated command file through the reader and dispatch of Main, per command.
+     * @param state The bank with the file.
+     * @throws IOException Not thrown for a file in memory.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BankState.REPLAY_COMMANDS)
+    public void replay(BankState state) throws IOException {
+        state.bank.replay(state.replayFile);
+    }
+
+    /**
+     * Owners for creating a whole bank, without a bank created up front.
+     */
+    @State(Scope.Benchmark)
+    public static class Population {
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int accounts;
+
+        Bank bank;
+        String[] owners;
+
+        /**
+         * Loads the bank and names the owners.
+         */
+        @Setup(Level.Trial)
+        public void names() {
+            bank = Bank.load();
+            owners = BankState.owners(accounts);
+        }
+    }
+
+    /**
+     * A batch of transfers between picked accounts of the bank.
+     */
+    @State(Scope.Benchmark)
+    public static class BatchState {
+        Runnable run;
+
+        /**
+         * Prepares the batch.
+         * @param state The bank.
+         */
+        @Setup(Level.Trial)
+        public void prepare(BankState state) {
+            String[] senders = new String[BankState.BATCH_SIZE];
+            String[] getters = new String[BankState.BATCH_SIZE];
+            for (int i = 0; i < BankState.BATCH_SIZE; i++){
+                senders[i] = state.pick();
+                getters[i] = state.pick();
+            }
+            run = state.bank.batch(senders, getters, SMALL);
+        }
+    }
+}
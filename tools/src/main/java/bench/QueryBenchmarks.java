@@ -0,0 +1,89 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the queries on the secondary indexes, and of a deposit once the indexes have to be kept up
+ * to date. The indexes are built in the setup, the first query would build them otherwise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class QueryBenchmarks {
+    private static final String[] TYPES = {"Savings", "Checking", "Business"};
+    private static final long AMOUNT = 10_500; // Thousandths
+
+    /**
+     * Queries the 100 highest balances.
+     * @param state The indexed bank.
+     * @return The number of accounts found.
+     */
+    @Benchmark
+    public int top100(Indexed state) {
+        return state.bank.topBalances(100);
+    }
+
+    /**
+     * Queries up to 100 balances below an amount that changes with every call.
+     * @param state The indexed bank.
+     * @return The number of accounts found.
+     */
+    @Benchmark
+    public int below(Indexed state) {
+        return state.bank.balancesBelow(AMOUNT + state.next++, 100);
+    }
+
+    /**
+     * Queries up to 100 inactive accounts of a type.
+     * @param state The indexed bank.
+     * @return The number of accounts found.
+     */
+    @Benchmark
+    public int inactive(Indexed state) {
+        return state.bank.findAccounts(TYPES[state.next++ % TYPES.length], false, 100);
+    }
+
+    /**
+     * Deposits into a picked account while the indexes are maintained.
+     * @param state The indexed bank.
+     */
+    @Benchmark
+    public void depositIndexed(Indexed state) {
+        state.bank.deposit(state.base.pick(), AMOUNT);
+    }
+
+    /**
+     * The bank with its indexes built.
+     */
+    @State(Scope.Benchmark)
+    public static class Indexed {
+        BankState base;
+        Bank bank;
+        int next;
+
+        /**
+         * Builds the indexes.
+         * @param base The bank.
+         */
+        @Setup(Level.Trial)
+        public void index(BankState base) {
+            this.base = base;
+            this.bank = base.bank;
+            bank.topBalances(1);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery of a data directory after a crash: logs are written like BankStorage does, then cut or corrupted
+ * the way a crash leaves them, and the state restored by BankSystem.openStorage() is checked. Amounts are
+ * thousandths, the default money mode.
+ */
+class RecoveryTest {
+    private static final long INITIAL = 1_000_000;
+    private static final long SMALL = 1_500;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Starts from an empty bank whose output is discarded.
+     */
+    @BeforeEach
+    void empty() {
+        Output.setSink(new OutputSink() {
+            @Override
+            public void writeLine(CharSequence line) {}
+
+            @Override
+            public void writePart(CharSequence part) {}
+
+            @Override
+            public void flush() {}
+        });
+        BankSystem.reset();
+    }
+
+    /**
+     * Closes the storage a test left open.
+     * @throws IOException If the final snapshot fails.
+     */
+    @AfterEach
+    void close() throws IOException {
+        BankSystem.closeStorage();
+        BankSystem.reset();
+    }
+
+    /**
+     * A record torn by the crash is cut off, the records before it are replayed.
+     * @throws IOException If the directory cannot be used.
+     */
+    @Test
+    void tornTailRecord() throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(WriteAheadLog.file(dir, 1), 1)) {
+            log.append(CommandReader.CREATE, "Ann", "Savings", INITIAL);
+            log.append(CommandReader.DEPOSIT, "Ann", null, SMALL);
+            log.append(CommandReader.DEPOSIT, "Ann", null, SMALL);
+        }
+        long full = Files.size(WriteAheadLog.file(dir, 1));
+        truncate(WriteAheadLog.file(dir, 1), full - 3);
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        assertEquals(INITIAL + SMALL, balance("Ann"));
+        assertTrue(Files.size(WriteAheadLog.file(dir, 1)) < full - 3, "the torn record is cut off the file");
+        assertDurable();
+    }
+
+    /**
+     * A record with a wrong checksum ends the log, the records after it are dropped too.
+     * @throws IOException If the directory cannot be used.
+     */
+    @Test
+    void corruptRecord() throws IOException {
+        long second;
+        try (WriteAheadLog log = new WriteAheadLog(WriteAheadLog.file(dir, 1), 1)) {
+            log.append(CommandReader.CREATE, "Ann", "Savings", INITIAL);
+            log.commit();
+            second = Files.size(WriteAheadLog.file(dir, 1));
+            log.append(CommandReader.DEPOSIT, "Ann", null, SMALL);
+            log.append(CommandReader.DEPOSIT, "Ann", null, SMALL);
+        }
+        flip(WriteAheadLog.file(dir, 1), second + Integer.BYTES); // The op of the first deposit
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        assertEquals(INITIAL, balance("Ann"));
+        assertEquals(second, Files.size(WriteAheadLog.file(dir, 1)));
+        assertDurable();
+    }
+
+    /**
+     * A batch whose group was cut short is dropped whole, a complete group before it is replayed.
+     * @throws IOException If the directory cannot be used.
+     */
+    @Test
+    void groupCutShort() throws IOException {
+        long complete;
+        try (WriteAheadLog log = new WriteAheadLog(WriteAheadLog.file(dir, 1), 1)) {
+            log.append(CommandReader.CREATE, "Ann", "Savings", INITIAL);
+            log.append(CommandReader.CREATE, "Bob", "Checking", INITIAL);
+            log.appendGroup(new Batch().deposit("Ann", SMALL).deposit("Bob", SMALL));
+            log.commit();
+            complete = Files.size(WriteAheadLog.file(dir, 1));
+            log.appendGroup(new Batch().deposit("Ann", SMALL).deposit("Bob", SMALL).deposit("Ann", SMALL));
+        }
+        long full = Files.size(WriteAheadLog.file(dir, 1));
+        truncate(WriteAheadLog.file(dir, 1), full - 2); // Only the last record of the group is torn
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        assertEquals(INITIAL + SMALL, balance("Ann"));
+        assertEquals(INITIAL + SMALL, balance("Bob"));
+        assertEquals(complete, Files.size(WriteAheadLog.file(dir, 1)), "the whole group is cut off the file");
+        assertDurable();
+    }
+
+    /**
+     * Logs of generations the snapshot covers are skipped, later ones are replayed, and new changes go to a
+     * generation after all of them.
+     * @throws IOException If the directory cannot be used.
+     */
+    @Test
+    void skipsCoveredGenerations() throws IOException {
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        BankSystem.createAccount("Ann", INITIAL, "Savings");
+        BankSystem.closeStorage(); // Snapshot of generation 1
+        BankSystem.reset();
+        try (WriteAheadLog log = new WriteAheadLog(WriteAheadLog.file(dir, 1), 1)) { // Left behind by a crash
+            log.append(CommandReader.DEPOSIT, "Ann", null, 999_000);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(WriteAheadLog.file(dir, 3), 3)) {
+            log.append(CommandReader.DEPOSIT, "Ann", null, SMALL);
+        }
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        assertEquals(INITIAL + SMALL, balance("Ann"));
+        assertTrue(Files.exists(WriteAheadLog.file(dir, 4)), "new changes are logged after the last generation");
+        assertDurable();
+    }
+
+    /**
+     * A snapshot of version 1, without the fee ledger, still loads, and the log after it is replayed.
+     * @throws IOException If the directory cannot be used.
+     */
+    @Test
+    void loadsVersionOneSnapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0x42414E4B);
+            out.writeInt(1);
+            out.writeBoolean(false); // Exact money
+            out.writeLong(1); // Covered generation
+            out.writeInt(2);
+            writeAccount(out, "Savings", "Ann", INITIAL, INITIAL + SMALL, true);
+            writeAccount(out, "Business", "Bob", INITIAL, INITIAL, false);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        bytes.write(ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue()).array());
+        Files.write(dir.resolve("snapshot.bin"), bytes.toByteArray());
+        try (WriteAheadLog log = new WriteAheadLog(WriteAheadLog.file(dir, 2), 2)) {
+            log.append(CommandReader.DEPOSIT, "Ann", null, SMALL);
+        }
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        assertEquals(INITIAL + 2 * SMALL, balance("Ann"));
+        assertEquals(2, BankSystem.getAccount("Ann").getJournal().size());
+        assertEquals(INITIAL, balance("Bob"));
+        assertFalse(BankSystem.getAccount("Bob").getState());
+        for (long fee : BankSystem.getFeeLedger().thousandths()){
+            assertEquals(0, fee, "a version 1 snapshot has no fees");
+        }
+        assertDurable(); // Now from a snapshot of the current version
+    }
+
+    private static long balance(String owner) {
+        Account account = BankSystem.getAccount(owner);
+        assertNotNull(account, owner + " is restored");
+        return account.getDeposit();
+    }
+
+    /**
+     * Closes the open storage and opens it again, which has to restore the same balances.
+     */
+    private void assertDurable() throws IOException {
+        Map<String, Long> balances = balances();
+        BankSystem.closeStorage();
+        BankSystem.reset();
+        BankSystem.openStorage(dir, Long.MAX_VALUE);
+        assertEquals(balances, balances(), "the recovered state is durable");
+    }
+
+    private static Map<String, Long> balances() {
+        TreeMap<String, Long> balances = new TreeMap<>();
+        for (Account account : BankSystem.getAccounts()){
+            balances.put(account.getOwner(), account.getDeposit());
+        }
+        return balances;
+    }
+
+    private static void writeAccount(DataOutputStream out, String type, String owner, long initial, long balance,
+                                     boolean active) throws IOException {
+        out.writeUTF(type);
+        out.writeUTF(owner);
+        out.writeLong(initial);
+        out.writeLong(balance);
+        out.writeBoolean(active);
+        out.writeInt(1);
+        out.writeByte(TransactionJournal.INITIAL_DEPOSIT);
+        out.writeLong(initial);
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void flip(Path file, long position) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        data[(int) position] ^= 0x40;
+        Files.write(file, data);
+    }
+}